@@ -1,9 +1,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
+import simpledb.utils.ByteBufferInputStream;
+import simpledb.utils.LatchManager;
+import simpledb.utils.PageChannel;
+import simpledb.utils.ReadAheadWindow;
 
 /**
  * BTreeFile is an implementation of a DbFile that stores a B+ tree.
@@ -24,6 +29,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final PageChannel channel;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +40,21 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file.
+	 *
+	 * @param mapped - true to parse internal and leaf pages straight out of a
+	 *            memory mapping of the file
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean mapped) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new PageChannel(f, mapped);
 	}
 
 	/**
@@ -78,13 +95,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = channel.read(0, pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -97,13 +112,20 @@ public class BTreeFile implements DbFile {
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					// parse internal and leaf pages in place when the file is mapped
+					ByteBuffer mapped = channel.map(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+					if(mapped != null) {
+						DataInputStream dis = new DataInputStream(new ByteBufferInputStream(mapped));
+						Debug.log(1, "BTreeFile.readPage: mapped page %d", id.getPageNumber());
+						if(id.pgcateg() == BTreePageId.INTERNAL)
+							return new BTreeInternalPage(id, dis, keyField);
+						else
+							return new BTreeLeafPage(id, dis, keyField);
+					}
 				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				byte pageBuf[] = new byte[BufferPool.getPageSize()];
+				int retval = channel.read(pageOffset(id.getPageNumber()), pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -127,14 +149,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,18 +162,50 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(pageOffset(id.getPageNumber()), data);
 		}
 	}
 
+	/**
+	 * Write pages sorted by page number, each run of adjacent pages with a
+	 * single write. The root pointer page is written on its own.
+	 */
+	@Override
+	public void writePages(List<Page> pages) throws IOException {
+		List<Page> sorted = new ArrayList<>(pages);
+		sorted.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+		int i = 0;
+		while (i < sorted.size()) {
+			Page first = sorted.get(i);
+			if (((BTreePageId) first.getId()).pgcateg() == BTreePageId.ROOT_PTR) {
+				writePage(first);
+				i++;
+				continue;
+			}
+			int pgno = first.getId().getPageNumber();
+			List<byte[]> run = new ArrayList<>();
+			int j = i;
+			while (j < sorted.size() && sorted.get(j).getId().getPageNumber() == pgno + (j - i)) {
+				run.add(sorted.get(j).getPageData());
+				j++;
+			}
+			channel.write(pageOffset(pgno), run);
+			i = j;
+		}
+	}
+
+	/**
+	 * Returns the file offset of the page with the given number; page numbers
+	 * start at 1, right after the root pointer page.
+	 */
+	private static long pageOffset(int pgno) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgno - 1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -176,58 +222,156 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. Internal pages (and the
+	 * root pointer page, if the search starts there) are only latched while passing
+	 * through them: the latch of a page is released as soon as the latch of the
+	 * child is taken. Only the leaf node is locked, with permission perm.
+	 *
+	 * Since the path is not locked, it may change before the leaf is locked; the
+	 * search is repeated until the path is unchanged once the leaf is locked.
 	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
-	 *mission
+	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
+	 * @param pid - the page the search starts at
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null
+	 * if the tree has no root yet
 	 *
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        // 如果是叶子节点，设置权限perm，并返回
-        if(pid.pgcateg() == BTreePageId.LEAF) {
-            return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-        }else{
-            // 对于internal节点
-            BTreeEntry entry;
-
-            BTreeInternalPage bTreeInternalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, perm);
-            Iterator<BTreeEntry> internalPageIterator = bTreeInternalPage.iterator();
-            // 判断是否有entry
-            if (internalPageIterator.hasNext()){
-                entry = internalPageIterator.next();
-            }else{
-                throw new DbException("no entry in this node");
-            }
-            BTreePageId nextId;
-            if(f == null){
-                // f = null的时候，返回最左节点
-                nextId = entry.getLeftChild();
-            }else{
-                // 否则需要和entry进行比较，找到刚好 >=f 的 entry
-                while (f.compare(Op.GREATER_THAN, entry.getKey()) && internalPageIterator.hasNext()) {
-                    entry = internalPageIterator.next();
-                }
-                // 如果f <= entry 取 entry的左子结点， 否则取右节点
-                if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    nextId = entry.getLeftChild();
-                } else {
-                    nextId = entry.getRightChild();
-                }
-            }
-            return findLeafPage(tid, dirtypages, nextId, perm, f);
-        }
+		BufferPool bp = Database.getBufferPool();
+		LatchManager latches = bp.getLatchManager();
+		// snapshots read page versions nobody modifies, so need no latches
+		boolean snapshot = bp.readsSnapshot(tid);
+		while(true) {
+			HashMap<PageId, Long> path = new HashMap<PageId, Long>();
+			try {
+				BTreePageId nextId = pid;
+				BTreePageId latched = null;
+				BTreePageId blocked = null;
+				boolean torn = false;
+				try {
+					while(nextId != null && nextId.pgcateg() != BTreePageId.LEAF) {
+						if(!snapshot) {
+							long version = latches.tryLatchShared(tid, nextId);
+							if(version < 0) {
+								blocked = nextId;
+								break;
+							}
+							// the parent is let go only once the child is latched
+							if(latched != null) {
+								latches.unlatchShared(latched);
+							}
+							latched = nextId;
+							path.put(nextId, version);
+						}
+						Page page = dirtypages.containsKey(nextId) ? dirtypages.get(nextId) : bp.getPageLatched(tid, nextId);
+						if(page instanceof BTreeRootPtrPage) {
+							nextId = ((BTreeRootPtrPage) page).getRootId();
+						}
+						else {
+							BTreeInternalPage internal = (BTreeInternalPage) page;
+							// an abort may have put the page back to its empty before image
+							// since its parent was read; the parent then fails validation
+							if(!snapshot && internal.getNumEntries() == 0 && !latches.validate(tid, path)) {
+								torn = true;
+								break;
+							}
+							nextId = childFor(internal, f);
+						}
+					}
+				} finally {
+					if(latched != null) {
+						latches.unlatchShared(latched);
+					}
+				}
+
+				if(blocked != null) {
+					// somebody is changing the page: wait for its lock, where a deadlock
+					// can be detected, rather than for its latch, then start over
+					boolean held = bp.holdsLock(tid, blocked);
+					bp.getPage(tid, blocked, Permissions.READ_ONLY);
+					if(!held) {
+						bp.releasePage(tid, blocked);
+					}
+					continue;
+				}
+				if(torn) {
+					continue;
+				}
+				if(nextId == null) {
+					return null;
+				}
+
+				// no latch is held while waiting for the lock of the leaf
+				boolean held = dirtypages.containsKey(nextId) || bp.holdsLock(tid, nextId);
+				BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, nextId, perm);
+				if(latches.validate(tid, path)) {
+					return leaf;
+				}
+				if(!held) {
+					dirtypages.remove(nextId);
+					bp.releasePage(tid, nextId);
+				}
+			} finally {
+				latches.forget(path.keySet());
+			}
+		}
+	}
+
+	/**
+	 * @return the child of an internal page the search for f continues at
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		BTreeEntry entry;
+		Iterator<BTreeEntry> internalPageIterator = page.iterator();
+		// 判断是否有entry
+		if (internalPageIterator.hasNext()){
+			entry = internalPageIterator.next();
+		}else{
+			throw new DbException("no entry in this node");
+		}
+		if(f == null){
+			// f = null的时候，返回最左节点
+			return entry.getLeftChild();
+		}
+		// 否则需要和entry进行比较，找到刚好 >=f 的 entry
+		while (f.compare(Op.GREATER_THAN, entry.getKey()) && internalPageIterator.hasNext()) {
+			entry = internalPageIterator.next();
+		}
+		// 如果f <= entry 取 entry的左子结点， 否则取右节点
+		if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
+			return entry.getLeftChild();
+		} else {
+			return entry.getRightChild();
+		}
+	}
+
+	/**
+	 * Keep read-ahead going for a scan that follows the right-sibling pointers
+	 * of the leaf level. Leaves are numbered in the order the scan visits them,
+	 * so the chain counts as sequential even when its pages are not.
+	 *
+	 * @param window - the read-ahead state of the scan
+	 * @param leafNo - the position of leaf in the scan
+	 * @param leaf - the leaf page the scan just moved to
+	 */
+	void readAheadLeaves(ReadAheadWindow window, int leafNo, BTreeLeafPage leaf) {
+		int[] ahead = window.onAccess(leafNo);
+		BTreePageId next = leaf.getRightSiblingId();
+		if(ahead != null && next != null) {
+			// everything up to the end of the window; resident pages are skipped
+			int count = ahead[0] - leafNo - 1 + ahead[1];
+			Database.getBufferPool().prefetch(next, count, p ->
+					p instanceof BTreeLeafPage ? ((BTreeLeafPage) p).getRightSiblingId() : null);
+		}
 	}
 
 	/**
@@ -529,6 +673,11 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 *
+	 * Internal pages and the root pointer page fetched with read-write permission are also
+	 * latched exclusively until the end of the insert or delete, since searches pass through
+	 * them without locking them. The buffer pool does not evict latched pages, so a search
+	 * never reads a stale copy from disk.
+	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -547,6 +696,9 @@ public class BTreeFile implements DbFile {
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				if(pid.pgcateg() == BTreePageId.INTERNAL || pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					Database.getBufferPool().getLatchManager().latchExclusive(tid, pid);
+				}
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -566,26 +718,29 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		createIfEmpty();
+		// find and lock the left-most leaf page corresponding to the key field,
+		// starting from the root pointer page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, t.getField(keyField));
+		if(leafPage == null) { // the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null) {
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
+			leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, t.getField(keyField));
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
+		// a failed operation keeps its latches until the transaction aborts,
+		// since the pages it changed half way are only restored then
+		Database.getBufferPool().getLatchManager().unlatchAll(tid);
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
@@ -1128,6 +1283,8 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) {
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+		// kept by a failed operation until the abort, see insertTuple()
+		Database.getBufferPool().getLatchManager().unlatchAll(tid);
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
@@ -1146,23 +1303,25 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			channel.append(emptyRootPtrData);
+			channel.append(emptyLeafData);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1211,11 +1370,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1246,10 +1402,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
@@ -1379,6 +1532,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAheadWindow readAhead = null;
+	int leafNo = 0;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1397,11 +1552,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		// the search passes the root pointer page under its latch, without locking it
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		curp = f.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, null);
+		readAhead = new ReadAheadWindow();
+		leafNo = 0;
+		if(curp != null) {
+			it = curp.iterator();
+			f.readAheadLeaves(readAhead, leafNo, curp);
+		}
 	}
 
 	/**
@@ -1423,6 +1582,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				f.readAheadLeaves(readAhead, ++leafNo, curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1464,6 +1624,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	// only scans that run to the end of the leaf chain read ahead, so a
+	// range scan never reads leaves past its upper bound; lookups that stay
+	// within two leaves never trigger it either
+	ReadAheadWindow readAhead = null;
+	int leafNo = 0;
 
 	/**
 	 * Constructor for this iterator
@@ -1482,17 +1647,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, ipred.getField());
+		}
+		else {
+			curp = f.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, null);
+		}
+		it = curp == null ? null : curp.iterator();
+		if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ
+				|| ipred.getOp() == Op.NOT_EQUALS) {
+			readAhead = new ReadAheadWindow();
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			readAhead = null;
 		}
-		it = curp.iterator();
+		leafNo = 0;
 	}
 
 	/**
@@ -1532,6 +1703,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if(readAhead != null)
+					f.readAheadLeaves(readAhead, ++leafNo, curp);
 				it = curp.iterator();
 			}
 		}
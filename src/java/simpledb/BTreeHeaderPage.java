@@ -24,7 +24,7 @@ public class BTreeHeaderPage implements Page {
 	private int prevPage; // previous header page or 0
 
 	byte[] oldData;
-	private final Byte oldDataLock=new Byte((byte)0);
+	private final Object oldDataLock = new Object();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -97,6 +97,8 @@ public class BTreeHeaderPage implements Page {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null) // not modified since the before image was set
+				oldDataRef = getPageData();
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -107,9 +109,18 @@ public class BTreeHeaderPage implements Page {
 	}
 
 	public void setBeforeImage() {
+		// the copy is only taken once the page is about to be modified
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
+		}
+	}
+
+	public void captureBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
 		}
 	}
 
@@ -66,9 +66,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, new DataInputStream(new ByteArrayInputStream(data)), key);
+	}
+
+	/**
+	 * Create a BTreeInternalPage by parsing its data from a stream, e.g. one
+	 * reading a memory-mapped page in place.
+	 */
+	BTreeInternalPage(BTreePageId id, DataInputStream dis, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
 		try {
@@ -145,6 +152,8 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null) // not modified since the before image was set
+				oldDataRef = getPageData();
 			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -155,9 +164,10 @@ public class BTreeInternalPage extends BTreePage {
 	}
 
 	public void setBeforeImage() {
+		// the copy is only taken once the page is about to be modified
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
 		}
 	}
 
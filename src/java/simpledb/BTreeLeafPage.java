@@ -62,9 +62,16 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, new DataInputStream(new ByteArrayInputStream(data)), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage by parsing its data from a stream, e.g. one
+	 * reading a memory-mapped page in place.
+	 */
+	BTreeLeafPage(BTreePageId id, DataInputStream dis, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
 		try {
@@ -137,6 +144,8 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
+			if (oldDataRef == null) // not modified since the before image was set
+				oldDataRef = getPageData();
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -147,9 +156,10 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	public void setBeforeImage() {
+		// the copy is only taken once the page is about to be modified
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
 		}
 	}
 
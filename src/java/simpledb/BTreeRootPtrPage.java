@@ -22,7 +22,7 @@ public class BTreeRootPtrPage implements Page {
 	private int rootCategory;
 	private int header;
 
-	private byte[] oldData;
+	private volatile byte[] oldData;
 
 	/**
 	 * Constructor.
@@ -48,7 +48,13 @@ public class BTreeRootPtrPage implements Page {
 	}
 
 	public void setBeforeImage() {
-		oldData = getPageData().clone();
+		// the copy is only taken once the page is about to be modified
+		oldData = null;
+	}
+
+	public void captureBeforeImage() {
+		if (oldData == null)
+			oldData = getPageData();
 	}
 
 	/**
@@ -142,7 +148,10 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			byte[] oldDataRef = oldData;
+			if (oldDataRef == null) // not modified since the before image was set
+				oldDataRef = getPageData();
+			return new BTreeRootPtrPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -2,14 +2,33 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import simpledb.utils.BufferRing;
+import simpledb.utils.EvictionPolicy;
+import simpledb.utils.EvictionPolicyType;
+import simpledb.utils.LatchManager;
 import simpledb.utils.LockManager;
 import simpledb.utils.LockType;
+import simpledb.utils.PageCleaner;
+import simpledb.utils.VersionStore;
+import simpledb.utils.WritePolicy;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * 缓冲池，存储了最近访问的页。
@@ -35,12 +54,49 @@ public class BufferPool {
     private  ConcurrentHashMap<PageId, Page> pages;
 
     private LockManager lockManager;
+
+    // short-term page latches, e.g. for B+ tree traversals
+    private final LatchManager latchManager = new LatchManager();
+
+    private final EvictionPolicy evictionPolicy;
+
+    // pages read ahead by the background I/O thread and not requested yet
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    // page reads in progress, see loadPage()
+    private final ConcurrentHashMap<PageId, CompletableFuture<Page>> inflight = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor ioExecutor;
+    // before images of pages transactions wrote straight to disk, see lockForDirectWrite()
+    private final ConcurrentHashMap<TransactionId, List<Page>> directWrites = new ConcurrentHashMap<>();
+    // committed page versions for read-only snapshot transactions
+    private final VersionStore versions = new VersionStore();
+    private final WritePolicy writePolicy = WritePolicy.fromConfig();
+    // pages fetched for writing by the insert or delete each transaction is
+    // running; they may hold changes that are not marked dirty yet
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> inUse = new ConcurrentHashMap<>();
+    // pages whose committed content is only in the log so far
+    private final ConcurrentHashMap<PageId, Unwritten> unwritten = new ConcurrentHashMap<>();
+    // pages logged since their before image was set; the log has moved them
+    // past it, so their next records need full images instead of deltas
+    private final Set<PageId> logged = ConcurrentHashMap.newKeySet();
+    // writes unwritten pages in the background
+    private final PageCleaner cleaner;
+    // taken around page writes, so the cleaner never puts an older image
+    // over a newer one; after the monitor of this
+    private final ReentrantLock writeLock = new ReentrantLock();
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 500;
+    /** Number of frames in the private ring of a large sequential scan. */
+    public static final int SCAN_RING_PAGES = 16;
     private static int TRANSATION_FACTOR = 2;
-    private static int DEFAUT_MAXTIMEOUT = 5000;
+    /**
+     * System property with the longest a transaction waits for a lock, in
+     * ms, before it aborts. Deadlocks are detected as they form, so the
+     * default of 0 waits as long as the lock is held.
+     */
+    public static final String LOCK_TIMEOUT_PROPERTY = "simpledb.lockTimeoutMillis";
+    private final int lockTimeout = Integer.getInteger(LOCK_TIMEOUT_PROPERTY, 0);
     private final int maxPages;
 
     /**
@@ -49,16 +105,73 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, EvictionPolicyType.fromConfig());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * them with the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy
+     */
+    public BufferPool(int numPages, EvictionPolicyType policyType) {
+        this(numPages, policyType.create(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * them with the given policy instance.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the page replacement policy, sized for numPages
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
         pages = new ConcurrentHashMap<>();
         maxPages = numPages;
         this.lockManager = new LockManager(numPages, TRANSATION_FACTOR * numPages);
+        this.evictionPolicy = evictionPolicy;
+        this.cleaner = new PageCleaner(new PageCleaner.Cleanable() {
+            public int cleanFrames() {
+                return BufferPool.this.cleanFrames();
+            }
+
+            public int clean(int max) throws IOException {
+                return BufferPool.this.clean(max);
+            }
+        }, numPages);
+    }
+
+    /**
+     * The committed image of a page that is only in the log so far, with
+     * the LSN the log has to be forced to before the image is written and
+     * the LSN of the first record since the page was last written.
+     */
+    private static class Unwritten {
+        final long recLsn;
+        final long lsn;
+        final Page image;
+
+        Unwritten(long recLsn, long lsn, Page image) {
+            this.recLsn = recLsn;
+            this.lsn = lsn;
+            this.image = image;
+        }
     }
 
     public static int getPageSize() {
       return pageSize;
     }
 
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    public PageCleaner getPageCleaner() {
+        return cleaner;
+    }
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
     	BufferPool.pageSize = pageSize;
@@ -99,27 +212,263 @@ public class BufferPool {
 
     // todo： quick access for lab4 getPage
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page for a bulk read. Pages missing from the
+     * pool are read into the frames of the given ring, recycling the page
+     * the ring read longest ago instead of evicting from the shared pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the private ring of the scan, or null to use the shared pool
+     * @see #newScanRing(int)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        if (versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            // no lock: the snapshot is read from committed page versions
+            return versions.read(tid, residentPage(pid));
+        }
         LockType lockType;
         if (perm == Permissions.READ_ONLY) {
             lockType = LockType.SLock;
         } else {
             lockType = LockType.XLock;
         }
-        lockManager.acquireLock(tid, pid, lockType, DEFAUT_MAXTIMEOUT);
-        if(pages.containsKey(pid))
-            return pages.get(pid);
+        lockManager.acquireLock(tid, pid, lockType, lockTimeout);
+        Set<PageId> operation = inUse.get(tid);
+        if (operation != null && perm == Permissions.READ_WRITE) {
+            operation.add(pid);
+        }
+        Page cached = pages.get(pid);
+        if(cached != null) {
+            if(prefetched.remove(pid) && ring != null) {
+                // read ahead for a ring scan: the frame belongs to the ring
+                addToRing(tid, ring, pid);
+            }
+            evictionPolicy.recordAccess(pid);
+            return forAccess(tid, cached, perm);
+        }
+        if(ring != null) {
+            addToRing(tid, ring, pid);
+        }
         if(pages.size() >= maxPages) {
             evictPage();
         }
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        pages.put(pid, page);
-
         // lockManager.test(tid, pid, perm);
+        return forAccess(tid, loadPage(pid, false), perm);
+    }
+
+    /**
+     * Retrieve a page without locking it, for a caller holding the latch of
+     * the page. The page must not be modified.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @see LatchManager
+     */
+    public Page getPageLatched(TransactionId tid, PageId pid) throws DbException {
+        if (versions.isSnapshot(tid)) {
+            return versions.read(tid, residentPage(pid));
+        }
+        Page cached = pages.get(pid);
+        if (cached != null) {
+            evictionPolicy.recordAccess(pid);
+            return cached;
+        }
+        return residentPage(pid);
+    }
+
+    /** Return true if tid is a read-only transaction reading a snapshot. */
+    public boolean readsSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    private Page residentPage(PageId pid) throws DbException {
+        Page live = pages.get(pid);
+        if (live == null) {
+            if (pages.size() >= maxPages) {
+                evictPage();
+            }
+            live = loadPage(pid, false);
+        }
+        return live;
+    }
+
+    /**
+     * Pages only copy their before image once somebody may write them, so
+     * pages that are only ever read never pay for it. The copy is also what
+     * snapshot readers see until the writer commits.
+     */
+    private Page forAccess(TransactionId tid, Page page, Permissions perm) {
+        if (perm == Permissions.READ_WRITE) {
+            page.captureBeforeImage();
+            if (!versions.isPinned(page.getId())) {
+                versions.pin(tid, page.getBeforeImage());
+            }
+        }
         return page;
     }
 
+    /**
+     * Make tid a read-only transaction reading a snapshot of the database
+     * as of the last commit. Its reads take no locks, so they neither wait
+     * for writers nor hold them up; it cannot write.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * Read a page from disk into the pool. Concurrent loads of the same page
+     * are collapsed into one read, so a scan catching up with its own
+     * read-ahead waits for the I/O in flight instead of issuing another one.
+     *
+     * @param pid the page to load
+     * @param ahead true if the page is loaded by read-ahead
+     * @return the resident page
+     */
+    private Page loadPage(PageId pid, boolean ahead) {
+        while (true) {
+            CompletableFuture<Page> loading = new CompletableFuture<>();
+            CompletableFuture<Page> other = inflight.putIfAbsent(pid, loading);
+            if (other != null) {
+                try {
+                    Page page = other.join();
+                    if (!ahead) {
+                        prefetched.remove(pid);
+                    }
+                    return page;
+                } catch (CompletionException e) {
+                    if (ahead) {
+                        throw e;
+                    }
+                    // the read-ahead failed, try again ourselves
+                    continue;
+                }
+            }
+            try {
+                Page page = pages.get(pid);
+                if (page == null) {
+                    page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                    pages.put(pid, page);
+                    evictionPolicy.recordInsert(pid);
+                    if (ahead) {
+                        prefetched.add(pid);
+                    }
+                } else if (!ahead) {
+                    prefetched.remove(pid);
+                }
+                loading.complete(page);
+                return page;
+            } catch (RuntimeException e) {
+                loading.completeExceptionally(e);
+                throw e;
+            } finally {
+                inflight.remove(pid, loading);
+            }
+        }
+    }
+
+    private void addToRing(TransactionId tid, BufferRing ring, PageId pid) {
+        PageId recycled = ring.add(pid);
+        if(recycled != null && !recycled.equals(pid)) {
+            recycle(tid, recycled);
+        }
+    }
+
+    /**
+     * Create the private ring for a sequential scan over a table with the
+     * given number of pages. Like PostgreSQL, only tables bigger than a
+     * quarter of the pool get a ring; smaller ones are cached normally.
+     *
+     * @param tablePages the number of pages of the scanned table
+     * @return the ring, or null if the scan should use the shared pool
+     */
+    public BufferRing newScanRing(int tablePages) {
+        if (tablePages <= maxPages / 4) {
+            return null;
+        }
+        return new BufferRing(Math.min(SCAN_RING_PAGES, maxPages));
+    }
+
+    /**
+     * Asynchronously read count pages into the pool, starting at first and
+     * following successor from each page to the next one. Pages are loaded
+     * on a background I/O thread without taking any lock; the scan that asked
+     * for them still locks each page when it calls getPage(). Pages already
+     * resident are skipped, and read-ahead gives up silently when it cannot
+     * find a clean frame.
+     *
+     * @param first the first page to read
+     * @param count the number of pages to read
+     * @param successor gives the id of the page following a page, or null at the end
+     */
+    public void prefetch(PageId first, int count, Function<Page, PageId> successor) {
+        if (first == null || count <= 0) {
+            return;
+        }
+        ioExecutor().execute(() -> {
+            PageId pid = first;
+            for (int i = 0; i < count && pid != null; i++) {
+                Page page = pages.get(pid);
+                if (page == null) {
+                    page = readAhead(pid);
+                    if (page == null) {
+                        return;
+                    }
+                }
+                pid = successor.apply(page);
+            }
+        });
+    }
+
+    private Page readAhead(PageId pid) {
+        try {
+            synchronized (this) {
+                if (pages.size() >= maxPages) {
+                    evictPage(false);
+                }
+            }
+            return loadPage(pid, true);
+        } catch (DbException | RuntimeException e) {
+            // read-ahead is only a hint
+            return null;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor ioExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "BufferPool-readahead");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            ioExecutor.allowCoreThreadTimeOut(true);
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Give the frame of a page read through a scan ring back to the pool.
+     * Pages dirtied or locked by someone else since are left alone.
+     */
+    private synchronized void recycle(TransactionId tid, PageId pid) {
+        Page p = pages.get(pid);
+        if (p != null && p.isDirty() == null && !lockManager.isLockedByOthers(tid, pid)) {
+            discardPage(pid);
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -134,6 +483,19 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         lockManager.releaseLock(tid, pid);
+        unchanged(tid, pid);
+    }
+
+    /**
+     * Tell the pool that the insert or delete tid is running fetched pid for
+     * writing but leaves it unchanged, so it may be evicted before the
+     * operation ends.
+     */
+    public void unchanged(TransactionId tid, PageId pid) {
+        Set<PageId> operation = inUse.get(tid);
+        if (operation != null) {
+            operation.remove(pid);
+        }
     }
 
     /**
@@ -147,6 +509,167 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Get the pages of tid ready for its commit record: under FORCE they are
+     * written, under NO-FORCE only logged, and the log force of the commit
+     * record makes them durable.
+     */
+    public void prepareCommit(TransactionId tid) throws IOException {
+        if (writePolicy == WritePolicy.STEAL_NO_FORCE) {
+            logPages(pagesWritableBy(tid));
+        } else {
+            flushPages(tid);
+        }
+    }
+
+    /**
+     * Log the dirty ones of pids without writing them; they stay in the pool
+     * as unwritten until they are flushed.
+     *
+     * @return the LSN the log has to be forced to, or 0 if nothing was dirty
+     */
+    private synchronized long logPages(List<PageId> pids) throws IOException {
+        long lsn = 0;
+        for (PageId pid : pids) {
+            Page pg = pages.get(pid);
+            if (pg != null && pg.isDirty() != null) {
+                long recLsn = Database.getLogFile().lsn();
+                lsn = Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImage(), pg, logged.add(pid));
+                Unwritten old = unwritten.get(pid);
+                if (old != null) {
+                    recLsn = old.recLsn;
+                }
+                unwritten.put(pid, new Unwritten(recLsn, lsn, Database.getLogFile().pageImage(pg)));
+                pg.markDirty(false, null);
+            }
+        }
+        if (maxPages - unwritten.size() < cleaner.getTarget()) {
+            cleaner.wakeUp();
+        }
+        return lsn;
+    }
+
+    /**
+     * The dirty page table for a checkpoint: the pages whose committed
+     * content is only in the log, each with the LSN of the first record the
+     * redo of the page needs. A page logged before the call is in the
+     * table unless it was written; the copy takes no I/O.
+     */
+    public synchronized Map<PageId, Long> dirtyPageTable() {
+        Map<PageId, Long> table = new HashMap<>();
+        for (Map.Entry<PageId, Unwritten> e : unwritten.entrySet()) {
+            table.put(e.getKey(), e.getValue().recLsn);
+        }
+        return table;
+    }
+
+    /**
+     * @return the number of free frames and of frames holding a page that
+     *         is neither dirty nor unwritten
+     */
+    private int cleanFrames() {
+        int n = maxPages - pages.size();
+        for (Map.Entry<PageId, Page> e : pages.entrySet()) {
+            if (e.getValue().isDirty() == null && !unwritten.containsKey(e.getKey())) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Write the committed images of up to max unwritten pages, for the page
+     * cleaner. The pages stay in the pool and may be changed meanwhile, as
+     * only the images are written and the monitor of this is not held.
+     * <p>
+     * A batch comes from one file, in page order, so that it is written in
+     * runs: the file and the pages around the unwritten page with the oldest
+     * log record, which holds back the checkpoint the most.
+     *
+     * @return the number of pages written
+     */
+    private int clean(int max) throws IOException {
+        Map.Entry<PageId, Unwritten> oldest = null;
+        for (Map.Entry<PageId, Unwritten> e : unwritten.entrySet()) {
+            if (oldest == null || e.getValue().recLsn < oldest.getValue().recLsn) {
+                oldest = e;
+            }
+        }
+        if (oldest == null) {
+            return 0;
+        }
+        int tableId = oldest.getKey().getTableId();
+        List<Map.Entry<PageId, Unwritten>> ofFile = new ArrayList<>();
+        for (Map.Entry<PageId, Unwritten> e : unwritten.entrySet()) {
+            if (e.getKey().getTableId() == tableId) {
+                ofFile.add(e);
+            }
+        }
+        ofFile.sort(Comparator.comparingInt(e -> e.getKey().getPageNumber()));
+        int from = 0;
+        while (from < ofFile.size() && ofFile.get(from).getKey().getPageNumber() < oldest.getKey().getPageNumber()) {
+            from++;
+        }
+        from = Math.max(0, Math.min(from, ofFile.size() - max));
+        List<Map.Entry<PageId, Unwritten>> batch =
+                new ArrayList<>(ofFile.subList(from, Math.min(ofFile.size(), from + max)));
+        writeLock.lock();
+        try {
+            long lsn = 0;
+            List<Page> images = new ArrayList<>();
+            Iterator<Map.Entry<PageId, Unwritten>> it = batch.iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageId, Unwritten> e = it.next();
+                if (unwritten.get(e.getKey()) != e.getValue()) {
+                    // flushed, discarded or committed again since
+                    it.remove();
+                    continue;
+                }
+                lsn = Math.max(lsn, e.getValue().lsn);
+                images.add(e.getValue().image);
+            }
+            if (images.isEmpty()) {
+                return 0;
+            }
+            Database.getLogFile().forceTo(lsn);
+            writeGrouped(images);
+            for (Map.Entry<PageId, Unwritten> e : batch) {
+                unwritten.remove(e.getKey(), e.getValue());
+            }
+            return images.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the committed image of pid if it is only in the log so far,
+     *         else null; used by rollback, as the disk lags behind it
+     */
+    Page committedImage(PageId pid) {
+        Unwritten u = unwritten.get(pid);
+        return u == null ? null : u.image;
+    }
+
+    // write pages with one writePages() per file
+    private static void writeGrouped(List<Page> pages) throws IOException {
+        Map<Integer, List<Page>> byFile = new HashMap<>();
+        for (Page pg : pages) {
+            byFile.computeIfAbsent(pg.getId().getTableId(), k -> new ArrayList<>()).add(pg);
+        }
+        for (Map.Entry<Integer, List<Page>> e : byFile.entrySet()) {
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(e.getValue());
+        }
+    }
+
+    // put the before image of an aborted page back into the pool
+    private synchronized void revertPage(Page pg) {
+        Page before = pg.getBeforeImage();
+        pages.put(before.getId(), before);
+        logged.remove(before.getId());
+        latchManager.invalidate(before.getId());
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     // todo: quick access for lab4 holdsLock
     // todo: synchronization
@@ -156,6 +679,71 @@ public class BufferPool {
         return lockManager.holdsLock(tid, p);
     }
 
+    /**
+     * Lock a page that tid is about to write straight to disk without going
+     * through the pool, e.g. a fresh page of a bulk load, and log the write.
+     * The caller must force the log before writing. The before image is
+     * written back if the transaction aborts.
+     *
+     * @param tid the transaction writing the page
+     * @param beforeImage the content of the page before the write
+     * @param afterImage the content of the page after the write
+     */
+    public void lockForDirectWrite(TransactionId tid, Page beforeImage, Page afterImage)
+        throws TransactionAbortedException, IOException {
+        lockManager.acquireLock(tid, beforeImage.getId(), LockType.XLock, lockTimeout);
+        versions.pin(tid, beforeImage);
+        directWrites.computeIfAbsent(tid, k -> new ArrayList<>()).add(beforeImage);
+        Database.getLogFile().logWrite(tid, beforeImage, afterImage);
+    }
+
+    /** Return true if a transaction other than tid holds a lock on the page. */
+    public boolean isLockedByOthers(TransactionId tid, PageId p) {
+        return lockManager.isLockedByOthers(tid, p);
+    }
+
+    /**
+     * Lock a whole table for tid, so that its pages can be read (or written,
+     * for READ_WRITE) without a lock per page.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (perm == Permissions.READ_ONLY && versions.isSnapshot(tid)) {
+            return;
+        }
+        LockType mode = perm == Permissions.READ_ONLY ? LockType.SLock : LockType.XLock;
+        lockManager.acquireTableLock(tid, tableId, mode, lockTimeout);
+    }
+
+    /**
+     * The pages tid may have written: those it holds page locks on, and the
+     * cached pages of tables it holds in X, which it writes without page
+     * locks.
+     */
+    private ArrayList<PageId> pagesWritableBy(TransactionId tid) {
+        ArrayList<PageId> result = lockManager.getLockList(tid);
+        ArrayList<Integer> tables = lockManager.getTablesCovering(tid, LockType.XLock);
+        if (!tables.isEmpty()) {
+            Set<PageId> locked = new HashSet<>(result);
+            for (PageId pid : pages.keySet()) {
+                if (tables.contains(pid.getTableId()) && !locked.contains(pid)) {
+                    result.add(pid);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** The lock manager of this pool, e.g. for its deadlock counters. */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** The page latches of this pool. */
+    public LatchManager getLatchManager() {
+        return latchManager;
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -167,19 +755,64 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if (versions.isSnapshot(tid)) {
+            versions.end(tid);
+            return;
+        }
         if (commit) {
-            flushPages(tid);
+            if (writePolicy == WritePolicy.STEAL_NO_FORCE) {
+                // already logged when the commit went through the log
+                long lsn = logPages(pagesWritableBy(tid));
+                if (lsn > 0) {
+                    Database.getLogFile().forceTo(lsn);
+                }
+            } else {
+                flushPages(tid);
+            }
+        }
+
+        ArrayList<PageId> lockList = pagesWritableBy(tid);
+        if (commit) {
+            // what tid wrote is now the state later transactions start from
+            versions.publish(tid, () -> {
+                for (PageId pid : lockList) {
+                    Page pg = pages.get(pid);
+                    if (pg != null) {
+                        pg.setBeforeImage();
+                    }
+                    logged.remove(pid);
+                }
+            });
+        }
+
+        List<Page> written = directWrites.remove(tid);
+        if (written != null && !commit) {
+            // undo the pages written around the pool
+            for (Page before : written) {
+                discardPage(before.getId());
+                Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+            }
         }
 
-        ArrayList<PageId> lockList = lockManager.getLockList(tid);
         if (lockList != null) {
             for (PageId pid : lockList) {
                 Page pg = pages.getOrDefault(pid, null);
-                if (pg != null && pg.isDirty() != null) {
+                if (pg != null && !commit && unwritten.containsKey(pid)) {
+                    // the disk does not have the state to go back to yet
+                    revertPage(pg);
+                } else if (pg != null && (pg.isDirty() != null || !commit)) {
+                    // an operation that failed half way may have changed
+                    // pages it never got to mark dirty
                     discardPage(pid);
                 }
             }
         }
+        if (!commit) {
+            versions.discard(tid);
+        }
+        // normally gone with the operation that took them; a failed one
+        // keeps them until the pages it changed are restored above
+        latchManager.unlatchAll(tid);
 
         // release locks finally
         lockManager.releaseLocksOnTransaction(tid);
@@ -205,14 +838,16 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> pages = file.insertTuple(tid, t);
-        // 标记dirty
-        for (Page page : pages) {
-            page.markDirty(true, tid);
-            if(this.pages.containsKey(page.getId())){
-                this.pages.replace(page.getId(), page);
-            }else
-                this.pages.put(page.getId(), page);
+        inUse.put(tid, ConcurrentHashMap.newKeySet());
+        try {
+            ArrayList<Page> pages = file.insertTuple(tid, t);
+            // 标记dirty
+            for (Page page : pages) {
+                page.markDirty(true, tid);
+                cacheDirtyPage(page);
+            }
+        } finally {
+            inUse.remove(tid);
         }
     }
 
@@ -234,14 +869,28 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> pages = file.deleteTuple(tid, t);
-        // 标记dirty
-        for (Page page : pages) {
-            page.markDirty(true, tid);
-            if(this.pages.containsKey(page.getId())){
-                this.pages.replace(page.getId(), page);
-            }else
-                this.pages.put(page.getId(), page);
+        inUse.put(tid, ConcurrentHashMap.newKeySet());
+        try {
+            ArrayList<Page> pages = file.deleteTuple(tid, t);
+            // 标记dirty
+            for (Page page : pages) {
+                page.markDirty(true, tid);
+                cacheDirtyPage(page);
+            }
+        } finally {
+            inUse.remove(tid);
+        }
+    }
+
+    /**
+     * Put a page dirtied by insertTuple/deleteTuple into the cache, replacing
+     * any older version of it.
+     */
+    private void cacheDirtyPage(Page page) {
+        if (this.pages.put(page.getId(), page) == null) {
+            evictionPolicy.recordInsert(page.getId());
+        } else {
+            evictionPolicy.recordAccess(page.getId());
         }
     }
 
@@ -253,14 +902,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Set<PageId> keySet = this.pages.keySet();
-        for (PageId pageId : keySet) {
-            TransactionId tid = pages.get(pageId).isDirty();
-            if(tid != null){
-                flushPage(pageId);
-            }
-        }
-
+        flushPages(new ArrayList<>(pages.keySet()));
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -274,7 +916,13 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        this.pages.remove(pid);
+        unwritten.remove(pid);
+        logged.remove(pid);
+        if (this.pages.remove(pid) != null) {
+            evictionPolicy.remove(pid);
+            prefetched.remove(pid);
+            latchManager.invalidate(pid);
+        }
     }
 
     /**
@@ -284,28 +932,111 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (pages.containsKey(pid)) {
+        flushPages(Collections.singletonList(pid));
+    }
+
+    /**
+     * Write the dirty and unwritten ones of pids to disk, after logging them.
+     * The log is forced once for all of them, before any page is written,
+     * and the pages of each file are written sorted, adjacent ones together.
+     */
+    private synchronized void flushPages(List<PageId> pids) throws IOException {
+        List<Page> dirty = new ArrayList<>();
+        long lsn = logForFlush(pids, dirty);
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Database.getLogFile().forceTo(lsn);
+        writeBack(dirty);
+    }
+
+    /**
+     * Log the dirty ones of pids and collect them, and the committed images
+     * of the unwritten ones, in dirty.
+     *
+     * @return the LSN the log has to be forced to before they are written
+     */
+    private synchronized long logForFlush(List<PageId> pids, List<Page> dirty) throws IOException {
+        long lsn = 0;
+        for (PageId pid : pids) {
             Page pg = pages.get(pid);
-            if (pg.isDirty() != null) {
-                // then write back
-                DbFile tb = Database.getCatalog().getDatabaseFile(pg.getId().getTableId());
-                tb.writePage(pg);
-                pg.markDirty(false, null);
+            Unwritten u = unwritten.get(pid);
+            if (pg != null && pg.isDirty() != null) {
+                lsn = Math.max(lsn, Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImage(), pg,
+                        logged.add(pid)));
+                dirty.add(pg);
+            } else if (pg != null && u != null) {
+                // the live page may already hold changes of an operation
+                // that has not marked it dirty yet
+                lsn = Math.max(lsn, u.lsn);
+                dirty.add(u.image);
+            }
+        }
+        return lsn;
+    }
+
+    // write logged pages and mark them clean
+    private void writeBack(List<Page> dirty) throws IOException {
+        writeLock.lock();
+        try {
+            // then write back
+            writeGrouped(dirty);
+            // before the cleaner can write an older committed image over them
+            for (Page pg : dirty) {
+                unwritten.remove(pg.getId());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        synchronized (this) {
+            for (Page pg : dirty) {
+                if (pages.get(pg.getId()) == pg) {
+                    pg.markDirty(false, null);
+                }
             }
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * The monitor of this is not held while the log is forced, so the
+     * force can be shared with other commits.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        ArrayList<PageId> page2flush = lockManager.getLockList(tid);
-        if (page2flush != null) {
-            for (PageId p : page2flush) {
-                flushPage(p);
+        List<Page> dirty = new ArrayList<>();
+        long lsn;
+        synchronized (this) {
+            lsn = logForFlush(pagesWritableBy(tid), dirty);
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Database.getLogFile().getGroupCommitter().awaitDurable(lsn);
+        writeBack(dirty);
+    }
+
+    /**
+     * @return true if an insert or delete that has not finished fetched pid
+     *         for writing
+     */
+    private boolean isInUse(PageId pid) {
+        for (Set<PageId> operation : inUse.values()) {
+            if (operation.contains(pid)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * @return true if pid may be dropped without writing it: it is neither
+     *         dirty nor unwritten, and no insert or delete is changing it
+     */
+    private boolean isEvictableClean(PageId pid) {
+        Page p = pages.get(pid);
+        return p != null && p.isDirty() == null && !unwritten.containsKey(pid)
+                && !latchManager.isLatchedExclusive(pid) && !isInUse(pid);
     }
 
     /**
@@ -313,19 +1044,62 @@ public class BufferPool {
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized  void evictPage() throws DbException {
+        evictPage(writePolicy == WritePolicy.STEAL_NO_FORCE);
+    }
+
+    /**
+     * @param steal whether dirty pages may be written to make room; clean
+     *        pages go first, then committed ones, then those of running
+     *        transactions
+     */
+    private synchronized void evictPage(boolean steal) throws DbException {
         // some code goes here
         // not necessary for lab1
-        for (HashMap.Entry<PageId, Page> entry : pages.entrySet()) {
-            PageId pid = entry.getKey();
-            Page   p   = entry.getValue();
-            if (p.isDirty() == null) {
-                // dont need to flushpage since all page evicted are not dirty
-                // flushPage(pid);
-                discardPage(pid);
-                return;
+        PageId victim = evictionPolicy.chooseVictim(this::isEvictableClean);
+        if (victim != null) {
+            discardPage(victim);
+            return;
+        }
+        if (!steal) {
+            throw new DbException("BufferPool: evictPage: all pages are marked as dirty");
+        }
+        // the cleaner fell behind; catch up for the next evictions
+        cleaner.wakeUp();
+        try {
+            if (!unwritten.isEmpty()) {
+                // write the committed images of all unwritten pages at once
+                // rather than one per eviction, then evict as usual
+                clean(unwritten.size());
+                victim = evictionPolicy.chooseVictim(this::isEvictableClean);
+                if (victim != null) {
+                    discardPage(victim);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("BufferPool: evictPage: " + e.getMessage());
+        }
+        // pages an insert or delete is changing are still in use
+        victim = evictionPolicy.chooseVictim(pid -> pages.get(pid) != null
+                && !latchManager.isLatchedExclusive(pid) && !isInUse(pid));
+        if (victim == null) {
+            throw new DbException("BufferPool: evictPage: all pages are in use");
+        }
+        try {
+            Page p = pages.get(victim);
+            TransactionId dirtier = p.isDirty();
+            if (dirtier != null) {
+                // written back if dirtier aborts, like a direct write
+                List<Page> written = directWrites.computeIfAbsent(dirtier, k -> new ArrayList<>());
+                if (written.stream().noneMatch(w -> w.getId().equals(p.getId()))) {
+                    written.add(p.getBeforeImage());
+                }
             }
+            flushPages(Collections.singletonList(victim));
+        } catch (IOException e) {
+            throw new DbException("BufferPool: evictPage: " + e.getMessage());
         }
-        throw new DbException("BufferPool: evictPage: all pages are marked as dirty");
+        discardPage(victim);
     }
 
 }
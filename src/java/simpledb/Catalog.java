@@ -149,6 +149,8 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the format {@code name (field type [pk], ...) [mmap]};
+     * tables marked {@code mmap} read their pages through a memory mapping.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -186,10 +188,20 @@ public class Catalog {
                         }
                     }
                 }
+                // an optional option after the field list, e.g. "mmap" to
+                // read the table through a memory mapping
+                boolean mapped = false;
+                String option = line.substring(line.indexOf(")") + 1).trim();
+                if (option.toLowerCase().equals("mmap"))
+                    mapped = true;
+                else if (!option.isEmpty()) {
+                    System.out.println("Unknown table option " + option);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -44,6 +44,10 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        if (child instanceof SeqScan) {
+            // let the scan skip rejected tuples without building them
+            ((SeqScan) child).pushDown(predicate);
+        }
         child.open();
         super.open();
     }
@@ -2,22 +2,76 @@ package simpledb;
 
 import java.util.*;
 
+import simpledb.utils.SpillFile;
+
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join by hashing: the
+ * tuples of child1 go into a hash table, and every tuple of child2 looks up
+ * its matches there.
+ * <p>
+ * The hash table holds at most a fixed number of tuples, read from the
+ * system property {@value #PROPERTY} (default {@link #MAP_SIZE}). When child1
+ * has more, the join turns into a hybrid hash join: both children are split
+ * on the hash of their join fields into {@link #PARTITIONS} partitions, of
+ * which the first stays in memory and is joined while child2 is read, and
+ * the others are spilled to disk and joined a pair at a time. A pair still
+ * too large for memory is split again with another hash, up to a few times,
+ * after which it is joined a memory-sized chunk of child1 at a time. Either
+ * way each child is read once, and each spilled tuple written and read back
+ * about once.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of child1 tuples held in memory */
+    public final static int MAP_SIZE = 20000;
+    public static final String PROPERTY = "simpledb.hashJoinTuples";
+    /** The number of partitions the children are split into at a time */
+    public static final int PARTITIONS = 32;
+    // how often a partition too large for memory is split again
+    private static final int MAX_SPLITS = 3;
+
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
+    private final int budget;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    /** A partition of both children, to be joined with each other. */
+    private static class Pair {
+        final SpillFile build;
+        final SpillFile probe;
+        final int depth;
+
+        Pair(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    // the partitions child1 and child2 are split into while they are read,
+    // or null while child1 fits in memory; the first one of child1 is only
+    // spilled if it does not fit either
+    transient private SpillFile[] build, probe;
+    transient private boolean residentSpilled;
+    transient private boolean readingChild2;
+    // the pairs left to join, the one being joined and its readers
+    transient private Deque<Pair> pending;
+    transient private Pair current;
+    transient private SpillFile.Reader buildReader, probeReader;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -30,6 +84,18 @@ public class HashEquiJoin extends Operator {
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.budget = budget();
+    }
+
+    /**
+     * @return the number of child1 tuples a hash join holds in memory
+     */
+    public static int budget() {
+        int budget = Integer.getInteger(PROPERTY, MAP_SIZE);
+        if (budget <= 0) {
+            throw new IllegalArgumentException(PROPERTY + " must be positive");
+        }
+        return budget;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -39,7 +105,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,33 +115,141 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
+
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    /**
+     * @return the partition field f belongs to after depth splits; every
+     *         depth hashes differently, so that a partition can be split
+     *         again
+     */
+    static int partition(Field f, int depth) {
+        // the finalizer of MurmurHash3, seeded by the depth
+        int h = f.hashCode() + depth * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, PARTITIONS);
+    }
+
+    private void put(Tuple t) {
+        ArrayList<Tuple> list = map.get(t.getField(pred.getField1()));
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(t.getField(pred.getField1()), list);
+        }
+        list.add(t);
+    }
+
+    private int mapSize() {
+        int n = 0;
+        for (ArrayList<Tuple> list : map.values()) {
+            n += list.size();
+        }
+        return n;
+    }
+
+    /**
+     * Read all of child1: into the hash table while it fits, and else into
+     * partitions, keeping the first one in memory as long as it fits.
+     */
+    private void loadChild1() throws DbException, TransactionAbortedException {
+        int n = 0;
         while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+            Tuple t = child1.next();
+            int i = build == null ? 0 : partition(t.getField(pred.getField1()), 0);
+            if (i != 0 || residentSpilled) {
+                build[i].add(t);
+                continue;
+            }
+            put(t);
+            if (++n <= budget) {
+                continue;
+            }
+            if (build == null) {
+                // from now on only the first partition is kept in memory
+                build = new SpillFile[PARTITIONS];
+                probe = new SpillFile[PARTITIONS];
+                for (int j = 0; j < PARTITIONS; j++) {
+                    build[j] = new SpillFile(child1.getTupleDesc());
+                    probe[j] = new SpillFile(child2.getTupleDesc());
+                }
+                Iterator<ArrayList<Tuple>> it = map.values().iterator();
+                while (it.hasNext()) {
+                    ArrayList<Tuple> list = it.next();
+                    int j = partition(list.get(0).getField(pred.getField1()), 0);
+                    if (j != 0) {
+                        for (Tuple u : list) {
+                            build[j].add(u);
+                        }
+                        it.remove();
+                    }
+                }
+                n = mapSize();
+            }
+            if (n > budget) {
+                // not even the first partition fits
+                for (ArrayList<Tuple> list : map.values()) {
+                    for (Tuple u : list) {
+                        build[0].add(u);
+                    }
+                }
+                map.clear();
+                residentSpilled = true;
+            }
+        }
+        if (build != null) {
+            for (SpillFile f : build) {
+                f.finish();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
         }
-        return cnt > 0;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        map.clear();
+        build = probe = null;
+        residentSpilled = false;
+        pending = new ArrayDeque<Pair>();
+        loadChild1();
+        readingChild2 = true;
+    }
 
+    /** Delete whatever is still spilled. */
+    private void discard() {
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+        if (pending != null) {
+            for (Pair p : pending) {
+                p.delete();
+            }
+            pending.clear();
+        }
+        if (build != null) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                build[i].delete();
+                probe[i].delete();
+            }
+            build = probe = null;
+        }
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        start();
         super.open();
     }
 
@@ -83,6 +257,7 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
+        discard();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
@@ -90,8 +265,11 @@ public class HashEquiJoin extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        discard();
+        this.listIt = null;
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -110,7 +288,7 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
@@ -131,32 +309,136 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
+            t2 = nextProbe();
+            if (t2 == null) {
+                return null;
+            }
             ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
+            if (l != null) {
+                listIt = l.iterator();
+            }
+        }
+    }
 
+    /**
+     * @return the next tuple of child2 to look up in the hash table, moving
+     *         on to the next pair of partitions when one is done, or null
+     *         when all are
+     */
+    private Tuple nextProbe() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (readingChild2) {
+                while (child2.hasNext()) {
+                    Tuple t = child2.next();
+                    int i = build == null ? 0 : partition(t.getField(pred.getField2()), 0);
+                    if (i != 0 || residentSpilled) {
+                        probe[i].add(t);
+                        continue;
+                    }
+                    return t;
+                }
+                readingChild2 = false;
+                if (build == null) {
+                    return null;
+                }
+                for (int i = 0; i < PARTITIONS; i++) {
+                    probe[i].finish();
+                    pending.push(new Pair(build[i], probe[i], 0));
+                }
+                build = probe = null;
+            } else if (probeReader != null) {
+                Tuple t = probeReader.next();
+                if (t != null) {
+                    return t;
+                }
+            }
+            if (!nextChunk()) {
+                return null;
+            }
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Load the next chunk of spilled child1 tuples into the hash table, and
+     * start reading the child2 tuples of the same partition.
+     *
+     * @return false if there are none left
+     */
+    private boolean nextChunk() throws DbException {
+        map.clear();
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        while (true) {
+            if (buildReader != null) {
+                Tuple t;
+                int n = 0;
+                while (n < budget && (t = buildReader.next()) != null) {
+                    put(t);
+                    n++;
+                }
+                if (n > 0) {
+                    probeReader = current.probe.reader();
+                    return true;
+                }
+                buildReader.close();
+                buildReader = null;
+                current.delete();
+                current = null;
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            Pair p = pending.pop();
+            if (p.build.size() == 0 || p.probe.size() == 0) {
+                // nothing can match
+                p.delete();
+            } else if (p.build.size() > budget && p.depth < MAX_SPLITS) {
+                split(p);
+            } else {
+                // if it is still too large after all the splits, most of
+                // it has the same key, and it is joined chunk by chunk
+                current = p;
+                buildReader = p.build.reader();
+            }
         }
+    }
 
-        return null;
+    /**
+     * Split a pair of partitions too large for memory into pairs of smaller
+     * ones, with the hash of the next depth.
+     */
+    private void split(Pair p) throws DbException {
+        SpillFile[] builds = new SpillFile[PARTITIONS];
+        SpillFile[] probes = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            builds[i] = new SpillFile(child1.getTupleDesc());
+            probes[i] = new SpillFile(child2.getTupleDesc());
+            pending.push(new Pair(builds[i], probes[i], p.depth + 1));
+        }
+        SpillFile.Reader r = p.build.reader();
+        for (Tuple t; (t = r.next()) != null;) {
+            builds[partition(t.getField(pred.getField1()), p.depth + 1)].add(t);
+        }
+        r.close();
+        for (SpillFile f : builds) {
+            f.finish();
+        }
+        r = p.probe.reader();
+        for (Tuple t; (t = r.next()) != null;) {
+            probes[partition(t.getField(pred.getField2()), p.depth + 1)].add(t);
+        }
+        r.close();
+        for (SpillFile f : probes) {
+            f.finish();
+        }
+        p.delete();
     }
 
     @Override
@@ -169,5 +451,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
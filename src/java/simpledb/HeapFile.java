@@ -1,8 +1,14 @@
 package simpledb;
 
+import simpledb.utils.BufferRing;
+import simpledb.utils.FreeSpaceMap;
+import simpledb.utils.PageChannel;
+import simpledb.utils.ReadAheadWindow;
+
 import javax.xml.crypto.Data;
 import java.io.*;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -21,6 +27,13 @@ public class HeapFile implements DbFile {
     private File file;
 
     private TupleDesc td;
+
+    private final PageChannel channel;
+
+    private final FreeSpaceMap freeSpace;
+
+    /** Number of pages {@link #bulkInsert} writes with one sequential write. */
+    public static final int BULK_BATCH_PAGES = 64;
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -29,9 +42,26 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param mapped
+     *            true to read pages straight out of a memory mapping of the
+     *            file instead of copying them in with read calls.
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.channel = new PageChannel(f, mapped);
+        File fsm = new File(f.getPath() + ".fsm");
+        // the map is only a hint that inserts rebuild as they go, so it is
+        // not left behind once the tables are gone
+        fsm.deleteOnExit();
+        this.freeSpace = new FreeSpaceMap(fsm, f);
     }
 
     /**
@@ -73,20 +103,22 @@ public class HeapFile implements DbFile {
         // some code goes here
         // 通过pid计算偏移量，然后读取一个页
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-
             // 计算偏移量
             int pgno = pid.getPageNumber();
             int pageSize = Database.getBufferPool().getPageSize();
 
-            int offset = pgno * pageSize;
+            long offset = (long) pgno * pageSize;
+            HeapPageId id = new HeapPageId(pid.getTableId(), pgno);
+            ByteBuffer mapped = channel.map(offset, pageSize);
+            if (mapped != null) {
+                return noteFreeSpace(new HeapPage(id, mapped));
+            }
             // 读取一个pagesize的内容
             byte[] buffer = new byte[pageSize];
 
-            randomAccessFile.seek(offset);
-            randomAccessFile.read(buffer);
-            HeapPage heapPage = new HeapPage(new HeapPageId(pid.getTableId(), pgno), buffer);
-            return heapPage;
+            channel.read(offset, buffer);
+            HeapPage heapPage = new HeapPage(id, buffer);
+            return noteFreeSpace(heapPage);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -101,14 +133,53 @@ public class HeapFile implements DbFile {
         int pgno = pageId.getPageNumber();
         int pageSize = Database.getBufferPool().getPageSize();
 
-        int offset = pgno * pageSize;
+        long offset = (long) pgno * pageSize;
+
+        channel.write(offset, page.getPageData());
+        noteFreeSpace((HeapPage) page);
+    }
+
+    /**
+     * Write pages sorted by page number, each run of adjacent pages with a
+     * single write.
+     */
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        List<Page> sorted = new ArrayList<>(pages);
+        sorted.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+        int pageSize = Database.getBufferPool().getPageSize();
+        int i = 0;
+        while (i < sorted.size()) {
+            int first = sorted.get(i).getId().getPageNumber();
+            List<byte[]> run = new ArrayList<>();
+            int j = i;
+            while (j < sorted.size() && sorted.get(j).getId().getPageNumber() == first + (j - i)) {
+                run.add(sorted.get(j).getPageData());
+                j++;
+            }
+            channel.write((long) first * pageSize, run);
+            for (int k = i; k < j; k++) {
+                noteFreeSpace((HeapPage) sorted.get(k));
+            }
+            i = j;
+        }
+    }
 
-        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-        randomAccessFile.seek(offset);
+    /**
+     * Save the free space map to its side file; done with each checkpoint,
+     * so page writes do not pay for it.
+     */
+    public void saveFreeSpace() throws IOException {
+        freeSpace.save();
+    }
 
-        byte[] buffer = page.getPageData();
-        randomAccessFile.write(buffer);
-        randomAccessFile.close();
+    /**
+     * Record the free slots of a page in the free space map; reading or
+     * writing a page keeps the map honest after aborts and crashes.
+     */
+    private HeapPage noteFreeSpace(HeapPage page) throws IOException {
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots(), page.numSlots);
+        return page;
     }
 
     /**
@@ -127,29 +198,119 @@ public class HeapFile implements DbFile {
         ArrayList<Page> pageList= new ArrayList<Page>();
 
         // 首先file存在未满的页的时候
-        for(int i = 0; i < numPages(); i++) {
-            // 插入操作不可以直接从t的recordId中获取pid
-            HeapPage modifiedPages = (HeapPage) Database.getBufferPool().getPage(tid,
-                    new HeapPageId(this.getId(), i), Permissions.READ_WRITE);
-
-            if(modifiedPages.getNumEmptySlots() != 0) {
-                modifiedPages.insertTuple(t);
-                pageList.add(modifiedPages);
-                return pageList;
+        // only lock the candidates of the free space map; the first pass
+        // skips candidates other transactions are using
+        int pages = numPages();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = freeSpace.nextCandidate(0, pages); i >= 0; i = freeSpace.nextCandidate(i + 1, pages)) {
+                // 插入操作不可以直接从t的recordId中获取pid
+                HeapPageId pid = new HeapPageId(this.getId(), i);
+                if (pass == 0 && Database.getBufferPool().isLockedByOthers(tid, pid)) {
+                    continue;
+                }
+                HeapPage modifiedPages = (HeapPage) Database.getBufferPool().getPage(tid,
+                        pid, Permissions.READ_WRITE);
+
+                if(modifiedPages.getNumEmptySlots() != 0) {
+                    modifiedPages.insertTuple(t);
+                    noteFreeSpace(modifiedPages);
+                    pageList.add(modifiedPages);
+                    return pageList;
+                }
+                // the map was stale
+                noteFreeSpace(modifiedPages);
+                Database.getBufferPool().unchanged(tid, pid);
             }
         }
         // 如果所有的页都满了，需要创建新的页
         byte[] data = HeapPage.createEmptyPageData();
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file,true));
-        bw.write(data);
-        bw.close();
+        int newPgno = (int) (channel.append(data) / BufferPool.getPageSize());
 
-        HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), numPages() - 1), Permissions.READ_WRITE);
+        HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), newPgno), Permissions.READ_WRITE);
         newPage.insertTuple(t);
+        noteFreeSpace(newPage);
         pageList.add(newPage);
         return pageList;
     }
 
+    /**
+     * Append tuples to the table in bulk. The tuples are packed into fresh
+     * pages that are written past the end of the file in batches of
+     * {@link #BULK_BATCH_PAGES} pages with one sequential write each,
+     * without going through the BufferPool. The new pages are locked for
+     * tid and emptied again if it aborts.
+     *
+     * @return the number of tuples inserted
+     */
+    public int bulkInsert(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int count = 0;
+        List<HeapPage> batch = new ArrayList<>();
+        HeapPage page = null;
+        while (tuples.hasNext()) {
+            if (page == null || page.getNumEmptySlots() == 0) {
+                if (batch.size() == BULK_BATCH_PAGES) {
+                    appendBatch(tid, batch);
+                    batch.clear();
+                }
+                // the real page number is only known once the batch is appended
+                page = new HeapPage(new HeapPageId(getId(), 0), HeapPage.createEmptyPageData());
+                batch.add(page);
+            }
+            page.insertTuple(tuples.next());
+            count++;
+        }
+        if (!batch.isEmpty()) {
+            appendBatch(tid, batch);
+        }
+        if (count > 0) {
+            channel.force();
+        }
+        return count;
+    }
+
+    /**
+     * Append a batch of pages at the end of the file for tid.
+     */
+    private void appendBatch(TransactionId tid, List<HeapPage> batch)
+            throws IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        int first;
+        // only the page numbers are taken under the monitor every append
+        // and remap of the channel needs; the locks and the log force come
+        // after. The reserved pages read as empty until they are written, and
+        // the free space map calls them full so that no insert picks them
+        synchronized (channel) {
+            first = (int) (channel.size() / pageSize);
+            for (int i = 0; i < batch.size(); i++) {
+                freeSpace.update(first + i, 0, batch.get(i).numSlots);
+            }
+            channel.reserve(batch.size() * pageSize);
+        }
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            HeapPageId pid = new HeapPageId(getId(), first + i);
+            data.add(batch.get(i).getPageData());
+            Database.getBufferPool().lockForDirectWrite(tid,
+                    new HeapPage(pid, HeapPage.createEmptyPageData()),
+                    new HeapPage(pid, data.get(i)));
+        }
+        Database.getLogFile().force();
+        channel.write((long) first * pageSize, data);
+        for (int i = 0; i < batch.size(); i++) {
+            HeapPage page = batch.get(i);
+            HeapPageId pid = new HeapPageId(getId(), first + i);
+            // a scan may have cached the page while it was still empty
+            Database.getBufferPool().discardPage(pid);
+            freeSpace.update(first + i, page.getNumEmptySlots(), page.numSlots);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                t.setRecordId(new RecordId(pid, t.getRecordId().getTupleNumber()));
+            }
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -159,6 +320,11 @@ public class HeapFile implements DbFile {
         HeapPageId pid = (HeapPageId) rid.getPageId();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        try {
+            noteFreeSpace(page);
+        } catch (IOException e) {
+            throw new DbException("could not update the free space map: " + e.getMessage());
+        }
         modifiedPages.add(page);
         return modifiedPages;
         // not necessary for lab1
@@ -166,19 +332,58 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * reads its pages through the given scan ring.
+     *
+     * @param ring the private ring of the scan, or null to use the shared pool
+     * @see BufferPool#newScanRing(int)
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return iterator(tid, ring, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored in this HeapFile that pass
+     * the predicate. The predicate runs on the page data, so tuples that do
+     * not pass are never built.
+     *
+     * @param ring the private ring of the scan, or null to use the shared pool
+     * @param predicate the predicate, or null to return all tuples
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring, Predicate predicate) {
         // some code goes here
         return new DbFileIterator() {
-            int pages = numPages();
+            int pages;
             int readingPage;
             PageId readingPid;
             Page page;
             Iterator<Tuple> it;
+            ReadAheadWindow readAhead;
+
+            // fetch page pgno for the scan and keep the read-ahead going
+            private void fetch(int pgno) throws DbException, TransactionAbortedException {
+                readingPage = pgno;
+                readingPid = new HeapPageId(getId(), pgno);
+                int[] ahead = readAhead.onAccess(pgno);
+                if(ahead != null && ahead[0] < pages) {
+                    Database.getBufferPool().prefetch(new HeapPageId(getId(), ahead[0]),
+                            Math.min(ahead[1], pages - ahead[0]), HeapFile.this::nextPageId);
+                }
+                page = Database.getBufferPool().getPage(tid, readingPid, Permissions.READ_ONLY, ring);
+                it = ((HeapPage)page).iterator(predicate);
+            }
+
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                readingPage=0;
-                readingPid = new HeapPageId(getId(), readingPage);
-                page = Database.getBufferPool().getPage(tid, readingPid, Permissions.READ_ONLY);
-                it = ((HeapPage)page).iterator();
+                // one lock for the whole scan instead of one per page
+                Database.getBufferPool().lockTable(tid, getId(), Permissions.READ_ONLY);
+                pages = numPages();
+                readAhead = ring == null ? new ReadAheadWindow() : new ReadAheadWindow(ring.size() / 2);
+                fetch(0);
             }
 
             @Override
@@ -189,12 +394,8 @@ public class HeapFile implements DbFile {
                 // 而是根据当前页是否有tuple决定是否读取下一个页 故作出修改。
                 boolean hasNextTupleInPage = it.hasNext();
                 while(!hasNextTupleInPage){
-                    if(readingPage < pages) {
-                        Database.getBufferPool().releasePage(tid, readingPid);
-                        readingPage++;
-                        readingPid = new HeapPageId(getId(), readingPage);
-                        page = Database.getBufferPool().getPage(tid, readingPid, Permissions.READ_ONLY);
-                        it = ((HeapPage) page).iterator();
+                    if(readingPage + 1 < pages) {
+                        fetch(readingPage + 1);
                         hasNextTupleInPage = it.hasNext();
                     }
                     else
@@ -212,20 +413,25 @@ public class HeapFile implements DbFile {
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
-                readingPage=0;
-                readingPid = new HeapPageId(getId(), readingPage);
-                page = Database.getBufferPool().getPage(tid, readingPid, Permissions.READ_ONLY);
-                it = ((HeapPage)page).iterator();
+                open();
             }
 
             @Override
             public void close() {
                 readingPage = pages+1;
                 it = null;
-                Database.getBufferPool().releasePage(tid, readingPid);
+                // page locks are held until the transaction completes:
+                // releasing them here let writers in between our read and
+                // our own later update of the same page
             }
         };
     }
 
-}
+    /**
+     * The page after p in file order; used to drive read-ahead.
+     */
+    private PageId nextPageId(Page p) {
+        return new HeapPageId(getId(), p.getId().getPageNumber() + 1);
+    }
 
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -16,14 +18,24 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    // tuples built so far; a used slot with no tuple yet is still only in raw.
+    // Readers holding only a shared lock build them concurrently, so a tuple
+    // is published with a compare-and-set and the first one built wins
+    final AtomicReferenceArray<Tuple> tuples;
     final int numSlots;
 
+    // the page as read from disk, never written to
+    private final ByteBuffer raw;
+    // offset of each field inside a tuple slot
+    private final int[] fieldOffsets;
+    // true once a tuple was inserted or deleted, so raw is out of date
+    private boolean modified;
+
     private boolean dirty;
     private TransactionId tid;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -41,28 +53,35 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over the raw bytes of a page, e.g. a slice of a
+     * memory-mapped file. Only the header is parsed here: the page keeps a
+     * reference to data and builds the Tuple of a slot the first time it is
+     * asked for, so reading a page costs no allocation per slot.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.dirty = false;
         this.tid = null;
 
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.getPageSize())
+            throw new IOException("short page: " + data.remaining() + " bytes");
+        this.raw = data.slice();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+            header[i] = raw.get(i);
+
+        tuples = new AtomicReferenceArray<>(numSlots);
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
         setBeforeImage();
     }
@@ -99,6 +118,8 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) // not modified since the before image was set
+                oldDataRef = getPageData();
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -109,9 +130,18 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        // the copy is only taken once the page is about to be modified
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    public void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
     }
 
@@ -123,38 +153,55 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    private int slotOffset(int slot) {
+        return header.length + slot * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in a used slot, building it from the raw page data the
+     * first time.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple tuple(int slot) {
+        Tuple t = tuples.get(slot);
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slot));
+            for (int j=0; j<td.numFields(); j++)
+                t.setField(j, readField(slot, j));
+            if (!tuples.compareAndSet(slot, null, t))
+                t = tuples.get(slot);
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
+    private Field readField(int slot, int j) {
+        return td.getFieldType(j).parse(raw, slotOffset(slot) + fieldOffsets[j]);
+    }
 
-        return t;
+    /**
+     * Returns field j of the tuple in slot i, read straight from the page
+     * data if the tuple has not been built.
+     */
+    public Field getField(int i, int j) {
+        Tuple t = tuples.get(i);
+        return t != null ? t.getField(j) : readField(i, j);
+    }
+
+    /**
+     * Returns true if the tuple in slot i passes the predicate. Integer
+     * comparisons on tuples that have not been built run on the raw bytes
+     * without allocating anything.
+     */
+    public boolean matches(int i, Predicate p) {
+        Tuple t = tuples.get(i);
+        if (t != null)
+            return p.filter(t);
+        int j = p.getField();
+        if (td.getFieldType(j) == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+            int value = raw.getInt(slotOffset(i) + fieldOffsets[j]);
+            return IntField.compare(value, p.getOp(), ((IntField) p.getOperand()).getValue());
+        }
+        return readField(i, j).compare(p.getOp(), p.getOperand());
     }
 
     /**
@@ -170,6 +217,12 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
+        if (!modified && !anyBuilt()) {
+            // nothing could have changed since the page was read
+            byte[] data = new byte[len];
+            raw.duplicate().get(data);
+            return data;
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -184,7 +237,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        for (int i=0; i<numSlots; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
@@ -199,9 +252,24 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never built: copy it over
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                try {
+                    byte[] slot = new byte[td.getSize()];
+                    ByteBuffer src = raw.duplicate();
+                    src.position(slotOffset(i));
+                    src.get(slot);
+                    dos.write(slot);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
 
@@ -212,7 +280,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * numSlots); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -229,6 +297,14 @@ public class HeapPage implements Page {
         return baos.toByteArray();
     }
 
+    private boolean anyBuilt() {
+        for (int i=0; i<numSlots; i++) {
+            if (tuples.get(i) != null)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Static method to generate a byte array corresponding to an empty
      * HeapPage.
@@ -256,13 +332,15 @@ public class HeapPage implements Page {
         assert t != null;
         RecordId recToDelete = t.getRecordId();
         if (recToDelete != null && pid.equals(recToDelete.getPageId())) {
-            for (int i = 0; i < numSlots; i++) {
-                if (isSlotUsed(i) && t.getRecordId().equals(tuples[i].getRecordId())) {
-                    markSlotUsed(i, false);
-                    // t.setRecordId(null);
-                    tuples[i] = null;
-                    return;
-                }
+            int i = recToDelete.getTupleNumber();
+            if (i >= 0 && i < numSlots && isSlotUsed(i)) {
+                // the tuple stays in tuples[i] for iterators that are
+                // still positioned before it
+                tuple(i);
+                markSlotUsed(i, false);
+                modified = true;
+                // t.setRecordId(null);
+                return;
             }
             throw new DbException("deleteTuple: Error: tuple slot is empty");
         }
@@ -283,9 +361,10 @@ public class HeapPage implements Page {
             throw new DbException("page is full");
         for (int i = 0; i < this.numSlots; i++) {
             if(!isSlotUsed(i)) {
-                t.setRecordId(new RecordId(this.pid, this.tuples.length + 1));
-                this.tuples[i] = t;
+                t.setRecordId(new RecordId(this.pid, i));
+                this.tuples.set(i, t);
                 markSlotUsed(i, true);
+                modified = true;
                 break;
             }
         }
@@ -316,7 +395,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int n = getNumTuples();
+        int n = numSlots;
         int res = 0;
         for(int i = 0;i < n; i++){
             if(!isSlotUsed(i))
@@ -360,14 +439,48 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList = new ArrayList<>();
-        for(int i = 0; i < getNumTuples(); i++) {
-            if(isSlotUsed(i)){
-               tupleList.add(tuples[i]);
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that pass the
+     *         predicate, or over all of them if it is null. A tuple is only
+     *         built when the iterator reaches it and it passes the predicate.
+     *         The iterator sees the slots that were used when it was created.
+     */
+    public Iterator<Tuple> iterator(Predicate predicate) {
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private boolean wasUsed(int i) {
+                return ((used[i / 8] >> (i % 8)) & 1) == 1;
             }
-        }
 
-        return tupleList.iterator();
+            private int advance(int from) {
+                for (int i = from; i < numSlots; i++) {
+                    if (wasUsed(i) && (predicate == null || matches(i, predicate)))
+                        return i;
+                }
+                return numSlots;
+            }
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins a relation to a table stored in a
+ * B+ tree keyed on the join field: instead of scanning the table for every
+ * outer tuple, it looks up the matching tuples through the index.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate pred;
+    private OpIterator child1;
+    private SeqScan child2;
+    private TupleDesc comboTD;
+
+    transient private Tuple t1 = null;
+    transient private DbFileIterator probe = null;
+
+    /**
+     * Constructor. Accepts the outer relation, a scan of the indexed inner
+     * table, and the predicate to join them on
+     *
+     * @param p
+     *            The predicate to use to join the children; anything but
+     *            NOT_EQUALS and LIKE, with field2 the key of the index
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) table, which must be a B+ tree file
+     *            keyed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        if (!canProbe(p, child2)) {
+            throw new IllegalArgumentException("cannot probe " + child2.getTableName()
+                    + " on field " + p.getField2() + " with " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return whether the table scan reads is a B+ tree keyed on field2 of
+     *         p, which can be probed with the operator of p
+     */
+    public static boolean canProbe(JoinPredicate p, SeqScan scan) {
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2()
+                && SortMergeJoin.canJoin(p.getOperator());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        child1.close();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        t1 = null;
+    }
+
+    /**
+     * @return the operator that finds the inner tuples: t1 op t2 holds
+     *         exactly when t2 flipped(op) t1
+     */
+    private static Predicate.Op flip(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple with each of the
+     * inner tuples the index finds for it.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (probe == null || !probe.hasNext()) {
+            if (probe != null) {
+                probe.close();
+                probe = null;
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            t1 = child1.next();
+            BTreeFile index = (BTreeFile) Database.getCatalog().getDatabaseFile(child2.getTableId());
+            probe = index.indexIterator(child2.getTransactionId(),
+                    new IndexPredicate(flip(pred.getOperator()), t1.getField(pred.getField1())));
+            probe.open();
+        }
+        Tuple t2 = probe.next();
+        Tuple t = new Tuple(comboTD);
+        int td1n = t1.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (SeqScan) children[1];
+    }
+}
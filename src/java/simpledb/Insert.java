@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -10,6 +12,12 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Inserts of more tuples than this into a HeapFile go through
+     * {@link HeapFile#bulkInsert}.
+     */
+    public static final int BULK_INSERT_THRESHOLD = 1024;
+
 
     private TransactionId t;
     private OpIterator child;
@@ -61,6 +69,12 @@ public class Insert extends Operator {
         this.called = false;
     }
 
+    private static DbException failed(String what, IOException e) {
+        DbException failure = new DbException(what + " failed: " + e.getMessage());
+        failure.initCause(e);
+        return failure;
+    }
+
     /**
      * Inserts tuples read from child into the tableId specified by the
      * constructor. It returns a one field tuple containing the number of
@@ -79,12 +93,35 @@ public class Insert extends Operator {
         if(called)
             return null;
         int count = 0;
-        while (child.hasNext()) {
+        // look ahead a little: a large insert into a heap file is loaded in
+        // bulk instead of tuple by tuple through the BufferPool
+        ArrayList<Tuple> head = new ArrayList<>();
+        while (head.size() < BULK_INSERT_THRESHOLD && child.hasNext()) {
+            head.add(child.next());
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (child.hasNext() && file instanceof HeapFile) {
             try {
-                Database.getBufferPool().insertTuple(t, tableId,child.next());
-                count++;
+                count = ((HeapFile) file).bulkInsert(t, new ChildIterator(head.iterator()));
+            } catch (ChildFailure e) {
+                if (e.getCause() instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) e.getCause();
+                throw (DbException) e.getCause();
             } catch (IOException e) {
-                // do noting
+                throw failed("bulk insert", e);
+            }
+        } else {
+            try {
+                for (Tuple tup : head) {
+                    Database.getBufferPool().insertTuple(t, tableId, tup);
+                    count++;
+                }
+                while (child.hasNext()) {
+                    Database.getBufferPool().insertTuple(t, tableId,child.next());
+                    count++;
+                }
+            } catch (IOException e) {
+                throw failed("insert", e);
             }
         }
         this.called = true;
@@ -93,6 +130,42 @@ public class Insert extends Operator {
         return t;
     }
 
+    /** Carries a checked exception of the child out of ChildIterator. */
+    private static class ChildFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChildFailure(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /** The buffered head of the child followed by the rest of the child. */
+    private class ChildIterator implements Iterator<Tuple> {
+        private final Iterator<Tuple> head;
+
+        ChildIterator(Iterator<Tuple> head) {
+            this.head = head;
+        }
+
+        public boolean hasNext() {
+            try {
+                return head.hasNext() || child.hasNext();
+            } catch (DbException | TransactionAbortedException e) {
+                throw new ChildFailure(e);
+            }
+        }
+
+        public Tuple next() {
+            if (head.hasNext())
+                return head.next();
+            try {
+                return child.next();
+            } catch (DbException | TransactionAbortedException e) {
+                throw new ChildFailure(e);
+            }
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
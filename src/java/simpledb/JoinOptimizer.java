@@ -14,6 +14,18 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** The physical join algorithms a logical join can be run with */
+    public enum Algorithm {
+        /** {@link Join}: any predicate */
+        NESTED_LOOP,
+        /** {@link HashEquiJoin}: equality only */
+        HASH,
+        /** {@link SortMergeJoin}: equality and ranges */
+        SORT_MERGE,
+        /** {@link IndexNestedLoopJoin}: equality and ranges, inner table in a B+ tree keyed on the join field */
+        INDEX_NESTED_LOOP
+    }
+
     /**
      * Constructor
      *
@@ -34,6 +46,10 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join is run with the algorithm {@link #orderJoins} chose for lj; if
+     * it chose none, or an index the inner plan cannot be probed through,
+     * equality joins are hashed and all others run as nested loops.
      *
      * @param lj
      *            The join being considered
@@ -68,13 +84,33 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        Algorithm a = lj.algorithm;
+        if (a == Algorithm.INDEX_NESTED_LOOP
+                && !(plan2 instanceof SeqScan && IndexNestedLoopJoin.canProbe(p, (SeqScan) plan2))) {
+            // the inner table is filtered or was joined already
+            a = null;
+        }
+        if (a == null) {
+            a = lj.p == Predicate.Op.EQUALS ? Algorithm.HASH : Algorithm.NESTED_LOOP;
+        }
+        switch (a) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOP:
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
-
     /**
      * Estimate the cost of a join.
      *
@@ -83,7 +119,9 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
-     *
+     * <p>
+     * This is the cost of the cheapest algorithm that can run the join, see
+     * {@link #chooseAlgorithm}.
      *
      * @param j
      *            A LogicalJoinNode representing the join operation being
@@ -103,21 +141,120 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        Algorithm a = chooseAlgorithm(j, card1, card2, cost1, cost2, true);
+        return estimateJoinCost(j, a, card1, card2, cost1, cost2);
+    }
+
+    /**
+     * Estimate the cost of a join run with algorithm a, with the same
+     * arguments as {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     *
+     * @return the cost, or infinity if a cannot run j
+     */
+    public double estimateJoinCost(LogicalJoinNode j, Algorithm a, int card1,
+                                   int card2, double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
-        } else {
-            // TODO IMPORTANT compare IO cost with CPU cost
+        }
+        // range predicates apply to about a third of the pairs, see
+        // estimateTableJoinCardinality
+        double rangeMatches = j.p == Predicate.Op.EQUALS ? 0 : card1 * (double) card2 / 3;
+        switch (a) {
+        case NESTED_LOOP:
             /*
              *   joincost(t1 join t2) = scancost(t1) + ntups(t1) x scancost(t2) //IO cost
              *                          + ntups(t1) x ntups(t2)  //CPU cost
              */
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            return cost1 + card1 * cost2 + (double) card1 * card2;
+        case HASH:
+            if (j.p != Predicate.Op.EQUALS) {
+                return Double.POSITIVE_INFINITY;
+            }
+            // t1 is hashed in memory if it fits, and else both sides are
+            // partitioned on disk first, each tuple written and read once
+            double spill = card1 > HashEquiJoin.budget() ? 2.0 * (card1 + card2) : 0;
+            return cost1 + cost2 + card1 + card2 + spill;
+        case SORT_MERGE:
+            if (!SortMergeJoin.canJoin(j.p)) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2
+                    + rangeMatches;
+        case INDEX_NESTED_LOOP:
+            BTreeFile index = probeIndex(j);
+            if (index == null) {
+                return Double.POSITIVE_INFINITY;
+            }
+            // every probe reads the root pointer and a path down the tree,
+            // and for a range about a third of the leaves
+            int pages = Math.max(1, index.numPages());
+            int fanout = BufferPool.getPageSize()
+                    / (index.getTupleDesc().getFieldType(index.keyField()).getLen() + BTreePage.INDEX_SIZE);
+            double path = 2 + Math.ceil(Math.log(pages) / Math.log(fanout));
+            double probe = j.p == Predicate.Op.EQUALS ? cost2 / pages * path
+                    : cost2 / pages * path + cost2 / 3;
+            return cost1 + card1 * probe + (j.p == Predicate.Op.EQUALS ? card1 : rangeMatches);
+        default:
+            throw new IllegalArgumentException("unknown join algorithm " + a);
+        }
+    }
+
+    private static double sortCost(int card) {
+        return card * Math.log(Math.max(card, 2)) / Math.log(2);
+    }
+
+    /**
+     * Choose the cheapest algorithm to run a join with, given the same
+     * estimates as {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     *
+     * @param innerIsTable
+     *            whether the right-hand side is a table rather than the
+     *            result of other joins, so that its index can be probed
+     */
+    public Algorithm chooseAlgorithm(LogicalJoinNode j, int card1, int card2,
+                                     double cost1, double cost2, boolean innerIsTable) {
+        if (j instanceof LogicalSubplanJoinNode) {
+            return j.p == Predicate.Op.EQUALS ? Algorithm.HASH : Algorithm.NESTED_LOOP;
+        }
+        Algorithm best = Algorithm.NESTED_LOOP;
+        double bestCost = estimateJoinCost(j, best, card1, card2, cost1, cost2);
+        for (Algorithm a : Algorithm.values()) {
+            if (a == Algorithm.INDEX_NESTED_LOOP && !innerIsTable) {
+                continue;
+            }
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the B+ tree the right-hand table of j can be probed through on
+     *         every outer tuple, or null if it has none keyed on the join
+     *         field, or is filtered
+     */
+    private BTreeFile probeIndex(LogicalJoinNode j) {
+        if (!SortMergeJoin.canJoin(j.p) || j.t2Alias == null) {
+            return null;
+        }
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null || p.hasFilter(j.t2Alias)) {
+            return null;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            return null;
+        }
+        BTreeFile index = (BTreeFile) f;
+        try {
+            return index.getTupleDesc().fieldNameToIndex(j.f2PureName) == index.keyField() ? index : null;
+        } catch (NoSuchElementException e) {
+            return null;
         }
     }
 
@@ -337,6 +474,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether a side is a base table rather than the result of prevBest
+        boolean leftTable = true, rightTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -372,6 +511,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftTable = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -388,6 +528,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightTable = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -401,13 +542,16 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        Algorithm a1 = chooseAlgorithm(j, t1card, t2card, t1cost, t2cost, rightTable);
+        double cost1 = estimateJoinCost(j, a1, t1card, t2card, t1cost, t2cost);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        Algorithm a2 = chooseAlgorithm(j2, t2card, t1card, t2cost, t1cost, leftTable);
+        double cost2 = estimateJoinCost(j2, a2, t2card, t1card, t2cost, t1cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            a1 = a2;
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
@@ -422,7 +566,7 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.plan.addElement(j.withAlgorithm(a1)); // prevbest is left -- add new join to end
         return cc;
     }
 
@@ -3,7 +3,18 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import simpledb.utils.GroupCommitter;
+import simpledb.utils.LogReader;
+import simpledb.utils.LogSegments;
+import simpledb.utils.LogWriter;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +43,24 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Records are appended to an in-memory buffer and reach the file when the
+log is forced. A commit does not force the log itself: it waits for a
+flusher thread that forces once for all the commits of a batching window,
+see {@link GroupCommitter}.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they record the active transactions and the dirty
+page table of the BufferPool, the committed pages only in the log with
+the offset of the first record their redo needs, and flush nothing.
+Besides explicit calls to logCheckpoint(), a background thread takes one
+every {@value #CHECKPOINT_PROPERTY} milliseconds (default 30000, 0 for
+none).
 */
 
 /**
@@ -39,33 +68,50 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself holds a single long integer, the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to it, see
+{@link LogSegments}, and addressed by LSN: offsets in the log are
+LSNs, which never change.  Log records are variable length and may
+span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  An image is a byte
+tag giving the type of the page (HEAP_PAGE, BTREE_LEAF_PAGE, ...),
+the table id and page number as integers, and the integer length of
+the page data followed by the data.
+
+<li> DELTA records log the change of a heap or B+ tree leaf page as the
+tuples it inserted, deleted and updated instead of as two images, see
+{@link PageDelta}.  They consist of the page type tag, the table id and
+page number of the page, and the integer length of the delta followed
+by the delta.  A delta only applies to the state the log last left its
+page in, so only the first record of a page since its before image was
+set may be one.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then an
+integer count of dirty pages, and for each the page type tag, table id
+and page number of the page and the long integer offset of its first
+record; then the long integer offset the checkpoint began at.  Pages
+logged before that offset and not in the table were on disk.
 
 </ul>
 
@@ -74,7 +120,9 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
+    // holds the offset of the last checkpoint; the records are in segments
     private RandomAccessFile raf;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,8 +130,25 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    public static final String CHECKPOINT_PROPERTY = "simpledb.checkpointIntervalMillis";
+    // takes the periodic checkpoints of all log files
+    private static final ScheduledExecutorService checkpointer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "LogFile-checkpointer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // type tags of the logged page images
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
@@ -93,6 +158,13 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // buffers records until the log is forced
+    private final LogWriter writer; //protected by this
+    private final GroupCommitter committer = new GroupCommitter(this::sync);
+    // one checkpoint or truncation at a time; before the monitor of this
+    private final Object checkpointLock = new Object();
+    private ScheduledFuture<?> periodicCheckpoint;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,7 +179,14 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
+        writer = new LogWriter(segments, segments.end());
         recoveryUndecided = true;
+        long interval = Long.getLong(CHECKPOINT_PROPERTY, 30000);
+        if (interval > 0) {
+            periodicCheckpoint = checkpointer.scheduleWithFixedDelay(this::periodicCheckpoint,
+                    interval, interval, TimeUnit.MILLISECONDS);
+        }
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,17 +206,18 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the LSN the next record will start at */
+    public synchronized long lsn() {
+        return writer.lsn();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,10 +238,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                writer.putInt(ABORT_RECORD);
+                writer.putLong(tid.getId());
+                writer.putLong(currentOffset);
+                currentOffset = position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,21 +249,32 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is forced to disk up to it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            writer.putInt(COMMIT_RECORD);
+            writer.putLong(tid.getId());
+            writer.putLong(currentOffset);
+            currentOffset = position();
+            lsn = writer.lsn();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // no monitor held, so other commits can join the same force
+        committer.awaitDurable(lsn);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** The group committer that forces the log for commits, e.g. to
+        configure its batching window. */
+    public GroupCommitter getGroupCommitter() {
+        return committer;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,14 +282,43 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN the log has to be forced to for the record to be
+        durable
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, before, after, false);
+    }
+
+    /** Write an UPDATE record, or a DELTA record if delta is set and the
+        change is one of whole tuples.
+        @param delta whether the log last left the page in the state of
+        before, so that a delta applies to it
+        @return the LSN the log has to be forced to for the record to be
+        durable
+    */
+    public  synchronized long logWrite(TransactionId tid, Page before,
+                                       Page after, boolean delta)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + position());
         preAppend();
+        byte[] changes = delta ? PageDelta.diff(before, after) : null;
+        if (changes != null) {
+            PageId pid = after.getId();
+            writer.putInt(DELTA_RECORD);
+            writer.putLong(tid.getId());
+            writer.putByte(pageType(after));
+            writer.putInt(pid.getTableId());
+            writer.putInt(pid.getPageNumber());
+            writer.putInt(changes.length);
+            writer.put(changes);
+            writer.putLong(currentOffset);
+            currentOffset = position();
+            return writer.lsn();
+        }
         /* update record conists of
 
            record type
@@ -207,92 +327,138 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        writer.putInt(UPDATE_RECORD);
+        writer.putLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(writer,before);
+        writePageData(writer,after);
+        writer.putLong(currentOffset);
+        currentOffset = position();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return writer.lsn();
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(LogWriter w, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        // page type tag (a byte, see pageType)
+        // table id
+        // page number
+        // page data length
+        // page data
+
+        w.putByte(pageType(p));
+        w.putInt(pid.getTableId());
+        w.putInt(pid.getPageNumber());
+        byte[] pageData = p.getPageData();
+        w.putInt(pageData.length);
+        w.put(pageData);
+        //        Debug.log ("WROTE PAGE DATA, TYPE = " + pageType(p) + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** @return the type tag logged for the class of p */
+    static byte pageType(Page p) throws IOException {
+        if (p instanceof HeapPage)
+            return HEAP_PAGE;
+        if (p instanceof BTreeRootPtrPage)
+            return BTREE_ROOT_PTR_PAGE;
+        if (p instanceof BTreeInternalPage)
+            return BTREE_INTERNAL_PAGE;
+        if (p instanceof BTreeLeafPage)
+            return BTREE_LEAF_PAGE;
+        if (p instanceof BTreeHeaderPage)
+            return BTREE_HEADER_PAGE;
+        throw new IOException("cannot log pages of type " + p.getClass().getName());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /** @return the type tag logged for the pages with id pid */
+    static byte pageType(PageId pid) throws IOException {
+        if (pid instanceof HeapPageId)
+            return HEAP_PAGE;
+        if (!(pid instanceof BTreePageId))
+            throw new IOException("cannot log pages with ids of type " + pid.getClass().getName());
+        switch (((BTreePageId) pid).pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return BTREE_ROOT_PTR_PAGE;
+        case BTreePageId.INTERNAL:
+            return BTREE_INTERNAL_PAGE;
+        case BTreePageId.LEAF:
+            return BTREE_LEAF_PAGE;
+        default:
+            return BTREE_HEADER_PAGE;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    Page readPageData(DataInput raf) throws IOException {
+        byte type = raf.readByte();
+        int tableId = raf.readInt();
+        int pgNo = raf.readInt();
+        int pageSize = raf.readInt();
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        //            Debug.log("READ PAGE OF TYPE " + type + ", table = " + tableId + ", page = " + pgNo);
+        return newPage(type, tableId, pgNo, pageData);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** @return a copy of p, built from its page data like a logged image */
+    Page pageImage(Page p) throws IOException {
+        PageId pid = p.getId();
+        return newPage(pageType(p), pid.getTableId(), pid.getPageNumber(), p.getPageData());
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private Page newPage(byte type, int tableId, int pgNo, byte[] pageData) throws IOException {
+        PageId pid = pageId(type, tableId, pgNo);
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPage((HeapPageId) pid, pageData);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage((BTreePageId) pid, pageData);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage((BTreePageId) pid, pageData, keyField(tableId));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage((BTreePageId) pid, pageData, keyField(tableId));
+        default:
+            return new BTreeHeaderPage((BTreePageId) pid, pageData);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Skip a page image written by writePageData.
+        @return the id of the page */
+    PageId skipPageData(LogReader in) throws IOException {
+        byte type = in.readByte();
+        int tableId = in.readInt();
+        int pgNo = in.readInt();
+        in.skipFully(in.readInt());
+        return pageId(type, tableId, pgNo);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    static PageId pageId(byte type, int tableId, int pgNo) throws IOException {
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        case BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        default:
+            throw new IOException("unknown page type " + type + " in log");
         }
-        return newPage;
+    }
 
+    private int keyField(int tableId) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            throw new IOException("logged B+ tree page of table " + tableId + " which is not a B+ tree");
+        }
+        return ((BTreeFile) f).keyField();
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +473,192 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        writer.putInt(BEGIN_RECORD);
+        writer.putLong(tid.getId());
+        writer.putLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record, then truncate
+        the log before the oldest record recovery needs. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (checkpointLock) {
+            checkpoint();
+            truncate();
+        }
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+    /** Write a fuzzy checkpoint record and point the log header at it.
+        Pages are not flushed and transactions go on meanwhile. */
+    private void checkpoint() throws IOException {
+        long beginLsn;
+        Map<PageId, Long> dirty;
+        // pages are logged and marked unwritten under the pool's monitor, so
+        // a page logged before beginLsn is in the table or on disk
+        synchronized (Database.getBufferPool()) {
+            beginLsn = lsn();
+            dirty = Database.getBufferPool().dirtyPageTable();
+        }
+        long startCpOffset;
+        long endLsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            startCpOffset = position();
+            writer.putInt(CHECKPOINT_RECORD);
+            writer.putLong(-1); //no tid , but leave space for convenience
+            writeCheckpoint(writer, new Checkpoint(tidToFirstLogRecord, dirty, beginLsn));
+            writer.putLong(currentOffset);
+            currentOffset = position();
+            endLsn = writer.lsn();
+        }
+        // the record has to be on disk before the header points to it
+        committer.awaitDurable(endLsn);
+        synchronized (this) {
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+        }
+        // the free space maps are only hints and need not match the record
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(tables.next());
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).saveFreeSpace();
             }
         }
-
-        logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    // the background checkpoint, which leaves truncation to logCheckpoint()
+    private void periodicCheckpoint() {
+        if (Database.getLogFile() != this) {
+            // the database was reset
+            periodicCheckpoint.cancel(false);
+            return;
+        }
+        try {
+            synchronized (checkpointLock) {
+                synchronized (this) {
+                    if (recoveryUndecided || !segments.isOpen()) {
+                        return;
+                    }
+                }
+                checkpoint();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            int numOutstanding = raf.readInt();
+    /** The contents of a checkpoint record, with log offsets. */
+    private static class Checkpoint {
+        // transaction id to its first record
+        final Map<Long, Long> active;
+        // dirty page to the first record its redo needs
+        final Map<PageId, Long> dirty;
+        // where the checkpoint began
+        final long begin;
+
+        Checkpoint(Map<Long, Long> active, Map<PageId, Long> dirty, long begin) {
+            this.active = active;
+            this.dirty = dirty;
+            this.begin = begin;
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        /** @return the offset of the first record recovery needs */
+        long start() {
+            long start = begin;
+            for (long offset : active.values()) {
+                start = Math.min(start, offset);
+            }
+            for (long offset : dirty.values()) {
+                start = Math.min(start, offset);
             }
+            return start;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** Write the body of a checkpoint record, after its type and tid. */
+    private static void writeCheckpoint(LogWriter w, Checkpoint cp) throws IOException {
+        //write list of outstanding transactions
+        w.putInt(cp.active.size());
+        for (Map.Entry<Long, Long> e : cp.active.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            w.putLong(e.getKey());
+            w.putLong(e.getValue());
+        }
+        // then the dirty page table
+        w.putInt(cp.dirty.size());
+        for (Map.Entry<PageId, Long> e : cp.dirty.entrySet()) {
+            PageId pid = e.getKey();
+            w.putByte(pageType(pid));
+            w.putInt(pid.getTableId());
+            w.putInt(pid.getPageNumber());
+            w.putLong(e.getValue());
+        }
+        w.putLong(cp.begin);
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /** Read the body of a checkpoint record, after its type and tid. */
+    private static Checkpoint readCheckpoint(DataInput in) throws IOException {
+        Map<Long, Long> active = new HashMap<Long, Long>();
+        int numOutstanding = in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            long tid = in.readLong();
+            active.put(tid, in.readLong());
+        }
+        Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            byte type = in.readByte();
+            int tableId = in.readInt();
+            int pgNo = in.readInt();
+            dirty.put(pageId(type, tableId, pgNo), in.readLong());
         }
+        return new Checkpoint(active, dirty, in.readLong());
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption */
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            truncate();
+        }
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    // delete the segments before the oldest record recovery needs; appends
+    // go on meanwhile, as nothing is copied
+    private void truncate() throws IOException {
+        long cpLoc;
+        synchronized (this) {
+            preAppend();
+            raf.seek(0);
+            cpLoc = raf.readLong();
+        }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Checkpoint cp;
+        try (LogReader in = LogReader.open(segments, cpLoc)) {
+            if (in.readInt() != CHECKPOINT_RECORD) {
+                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            }
+            in.readLong();
+            cp = readCheckpoint(in);
+        }
+        long minLogRecord = Math.min(cpLoc, cp.start());
+
+        // recovery has to start from this checkpoint once the ones before
+        // it are gone
+        synchronized (this) {
+            raf.getChannel().force(true);
+        }
+        int n = segments.truncateBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; DELETED " + n + " SEGMENTS BEFORE " + minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,19 +674,91 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    return; // tid logged nothing
+                }
+                writer.write();
+
+                // per page, the records of tid, undone last to first
+                final Map<PageId, List<Step>> undo = new HashMap<PageId, List<Step>>();
+                scan(first, (type, recordTid, offset, in) -> {
+                    if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                        PageId pid = skipPageData(in);
+                        if (type == UPDATE_RECORD) {
+                            skipPageData(in);
+                        }
+                        if (recordTid == tid.getId()) {
+                            List<Step> steps = undo.get(pid);
+                            if (steps == null) {
+                                steps = new ArrayList<Step>();
+                                undo.put(pid, steps);
+                            }
+                            steps.add(0, new Step(offset, true, offset));
+                        }
+                    }
+                });
+
+                for (Map.Entry<PageId, List<Step>> e : undo.entrySet()) {
+                    PageId pid = e.getKey();
+                    // the disk may lag behind the state before tid, but
+                    // the pool still has that one then
+                    Page p = Database.getBufferPool().committedImage(pid);
+                    if (p == null) {
+                        p = replay(pid, e.getValue());
+                    }
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                    Database.getBufferPool().discardPage(pid);
+                }
             }
         }
     }
 
+    /** What scan() does with a log record. */
+    private interface RecordHandler {
+        /** Handle the record starting at offset. in is positioned after the
+            type and transaction id; the handler must read or skip both page
+            images of an UPDATE record and the body of a DELTA record,
+            scan() takes care of the rest. */
+        void record(int type, long tid, long offset, LogReader in) throws IOException;
+    }
+
+    /** Read the log from offset from to its end.
+        @return the offset just past the last complete record */
+    private long scan(long from, RecordHandler handler) throws IOException {
+        long end = from;
+        try (LogReader in = LogReader.open(segments, from)) {
+            while (true) {
+                long offset = in.position();
+                int type = in.readInt();
+                long tid = in.readLong();
+                handler.record(type, tid, offset, in);
+                if (type == CHECKPOINT_RECORD) {
+                    readCheckpoint(in);
+                }
+                in.readLong();
+                end = in.position();
+            }
+        } catch (EOFException e) {
+            // the end of the log, or a record the crash cut short
+        }
+        return end;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            if (periodicCheckpoint != null) {
+                periodicCheckpoint.cancel(false);
+            }
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -493,18 +773,317 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged
+                    startLog();
+                    return;
+                }
+
+                // analysis: the log matters from the first record of the
+                // transactions active at the checkpoint and of the pages
+                // dirty at it
+                final Set<Long> active = new HashSet<Long>();
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long start = segments.start();
+                Checkpoint cp = null;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    try (LogReader in = LogReader.open(segments, cpLoc + INT_SIZE + LONG_SIZE)) {
+                        cp = readCheckpoint(in);
+                    }
+                    active.addAll(cp.active.keySet());
+                    start = Math.min(cpLoc, cp.start());
+                }
+
+                // per transaction and page, the offsets of its records
+                final Map<Long, Map<PageId, List<Long>>> records = new HashMap<Long, Map<PageId, List<Long>>>();
+                // per page, the records to redo and undo, in order; a full
+                // image makes the ones before it moot
+                final Map<PageId, List<Step>> steps = new HashMap<PageId, List<Step>>();
+                long end = scan(start, (type, tid, offset, in) -> {
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        active.add(tid);
+                        break;
+                    case COMMIT_RECORD:
+                        active.remove(tid);
+                        records.remove(tid);
+                        break;
+                    case ABORT_RECORD:
+                        // the rollback before the record undid these
+                        active.remove(tid);
+                        Map<PageId, List<Long>> rolledBack = records.remove(tid);
+                        if (rolledBack != null) {
+                            addUndo(steps, rolledBack, offset);
+                        }
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        PageId pid = skipPageData(in);
+                        List<Step> page = steps.get(pid);
+                        if (type == UPDATE_RECORD) {
+                            skipPageData(in);
+                            page = null;
+                        }
+                        if (page == null) {
+                            page = new ArrayList<Step>();
+                            steps.put(pid, page);
+                        }
+                        page.add(new Step(offset, false, offset));
+                        Map<PageId, List<Long>> pages = records.get(tid);
+                        if (pages == null) {
+                            pages = new HashMap<PageId, List<Long>>();
+                            records.put(tid, pages);
+                        }
+                        List<Long> offsets = pages.get(pid);
+                        if (offsets == null) {
+                            offsets = new ArrayList<Long>();
+                            pages.put(pid, offsets);
+                        }
+                        offsets.add(offset);
+                        break;
+                    }
+                });
+
+                if (cp != null) {
+                    // the other pages logged before the checkpoint began
+                    // were on disk then
+                    final Checkpoint last = cp;
+                    Iterator<Map.Entry<PageId, List<Step>>> it = steps.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<PageId, List<Step>> e = it.next();
+                        if (!last.dirty.containsKey(e.getKey())) {
+                            e.getValue().removeIf(step -> step.at < last.begin);
+                            if (e.getValue().isEmpty()) {
+                                it.remove();
+                            }
+                        }
+                    }
+                }
+
+                // undo: under strict two-phase locking nobody else updated
+                // the pages of a loser after it
+                for (Long loser : active) {
+                    Map<PageId, List<Long>> pages = records.get(loser);
+                    if (pages != null) {
+                        addUndo(steps, pages, Long.MAX_VALUE);
+                    }
+                }
+                redo(steps);
+
+                // drop what the crash cut short and continue after it
+                segments.truncateAfter(end);
+                writer.setChannel(segments, end);
+                currentOffset = end;
+                tidToFirstLogRecord.clear();
+                for (Long loser : active) {
+                    preAppend();
+                    writer.putInt(ABORT_RECORD);
+                    writer.putLong(loser);
+                    writer.putLong(currentOffset);
+                    currentOffset = position();
+                }
+                force();
             }
          }
     }
 
+    // throw out the old log and start an empty one
+    private void startLog() throws IOException {
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        // LSNs go on from the old log, as callers may hold some already
+        segments.reset(writer.lsn());
+        currentOffset = writer.lsn();
+    }
+
+    /** Something recovery does to a page: redo or undo a record. */
+    private static class Step {
+        // where the UPDATE or DELTA record starts
+        final long record;
+        final boolean undo;
+        // where in the log it happens, which for an undo may be later
+        final long at;
+
+        Step(long record, boolean undo, long at) {
+            this.record = record;
+            this.undo = undo;
+            this.at = at;
+        }
+    }
+
+    // undo the records of a transaction, last to first
+    private static void addUndo(Map<PageId, List<Step>> steps, Map<PageId, List<Long>> records, long at) {
+        for (Map.Entry<PageId, List<Long>> e : records.entrySet()) {
+            List<Step> page = steps.get(e.getKey());
+            if (page == null) {
+                page = new ArrayList<Step>();
+                steps.put(e.getKey(), page);
+            }
+            List<Long> offsets = e.getValue();
+            for (int i = offsets.size() - 1; i >= 0; i--) {
+                page.add(new Step(offsets.get(i), true, at));
+            }
+        }
+    }
+
+    /** Replay steps on a page, starting from its disk image unless a full
+        image comes first.
+        @return the page the steps leave behind */
+    private Page replay(PageId pid, List<Step> steps) throws IOException {
+        byte[] data = null;
+        LogReader in = null;
+        try {
+            for (Step step : steps) {
+                if (in == null || in.position() > step.record) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    in = LogReader.open(segments, step.record);
+                } else {
+                    in.skipFully(step.record - in.position());
+                }
+                data = apply(in, pid, step, data);
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        return newPage(pageType(pid), pid.getTableId(), pid.getPageNumber(), data);
+    }
+
+    // do a step to the data of a page, null for the disk image
+    private static byte[] apply(LogReader in, PageId pid, Step step, byte[] data) throws IOException {
+        int type = in.readInt();
+        in.readLong();
+        if (type == UPDATE_RECORD) {
+            data = readImageData(in);
+            if (!step.undo) {
+                data = readImageData(in);
+            }
+        } else {
+            byte[] changes = readImageData(in);
+            if (data == null) {
+                data = diskImage(pid);
+            }
+            PageDelta.apply(changes, data, step.undo);
+        }
+        return data;
+    }
+
+    // the data of an image written by writePageData, or of a delta
+    private static byte[] readImageData(DataInput in) throws IOException {
+        in.readByte();
+        in.readInt();
+        in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    // the data of a page on disk, or of an empty page past the end of its file
+    private static byte[] diskImage(PageId pid) {
+        try {
+            Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            if (p != null) {
+                return p.getPageData();
+            }
+        } catch (IllegalArgumentException e) {
+            // never written
+        }
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /** Replay the steps of pages from the log, in parallel. The pages are
+        partitioned by id, so each page is written by one thread.
+
+        @param steps per page, what to redo and undo in order
+    */
+    private void redo(Map<PageId, List<Step>> steps) throws IOException {
+        int n = Math.min(steps.size(), Runtime.getRuntime().availableProcessors());
+        if (n == 0) {
+            return;
+        }
+        List<List<Map.Entry<PageId, List<Step>>>> parts = new ArrayList<List<Map.Entry<PageId, List<Step>>>>();
+        for (int i = 0; i < n; i++) {
+            parts.add(new ArrayList<Map.Entry<PageId, List<Step>>>());
+        }
+        for (Map.Entry<PageId, List<Step>> e : steps.entrySet()) {
+            parts.get((e.getKey().hashCode() & Integer.MAX_VALUE) % n).add(e);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            for (final List<Map.Entry<PageId, List<Step>>> part : parts) {
+                done.add(workers.submit(() -> {
+                    // read the log front to back
+                    part.sort(Comparator.comparingLong(e -> e.getValue().get(0).record));
+                    for (Map.Entry<PageId, List<Step>> e : part) {
+                        Page p = replay(e.getKey(), e.getValue());
+                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("recovery interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+
+        for (PageId pid : steps.keySet()) {
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writer.write();
+        segments.force();
+        committer.synced(writer.lsn());
+    }
+
+    /** Force the log unless it is durable up to lsn already. */
+    public void forceTo(long lsn) throws IOException {
+        if (!committer.isDurable(lsn)) {
+            force();
+        }
+    }
+
+    /** Force the log for the group committer. Only the buffer is written
+        under the monitor, so appends go on during the force.
+
+        @return the LSN up to which the log is now durable
+    */
+    private long sync() throws IOException {
+        long lsn;
+        synchronized (this) {
+            writer.write();
+            lsn = writer.lsn();
+        }
+        segments.force();
+        return lsn;
+    }
+
+    /** @return the offset at which the next record will start */
+    private long position() {
+        return writer.lsn();
     }
 
 }
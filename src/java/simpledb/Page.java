@@ -56,4 +56,12 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Called before a transaction may modify this page. Pages that defer the
+     * copy made by setBeforeImage() take it here, the first time after the
+     * before image was last set.
+     */
+    public default void captureBeforeImage() {
+    }
 }
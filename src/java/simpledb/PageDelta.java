@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tuple level changes of a page, logged instead of its full before and
+ * after images. A delta lists the slots that were inserted into, deleted
+ * from or updated, each with only the bytes that changed.
+ * <p>
+ * Every operation sets bytes to a value instead of changing them, so
+ * applying a delta twice, or to a later state of the page, does no harm.
+ * Undoing it sets the same bytes back to their old values.
+ * <p>
+ * Only pages made of a slot bitmap and fixed size slots have deltas: heap
+ * pages and B+ tree leaf pages.
+ */
+public class PageDelta {
+
+    static final byte INSERT_SLOT = 1;
+    static final byte DELETE_SLOT = 2;
+    static final byte UPDATE_FIELD = 3;
+
+    private PageDelta() {
+    }
+
+    /** Where the slot bitmap and the slots of a page are. */
+    private static class Layout {
+        final int headerOffset;
+        final int numSlots;
+        final int slotSize;
+
+        Layout(int headerOffset, int numSlots, int slotSize) {
+            this.headerOffset = headerOffset;
+            this.numSlots = numSlots;
+            this.slotSize = slotSize;
+        }
+
+        int slotOffset(int slot) {
+            return headerOffset + (numSlots + 7) / 8 + slot * slotSize;
+        }
+
+        int end() {
+            return slotOffset(numSlots);
+        }
+    }
+
+    private static Layout layout(Page p) {
+        if (p instanceof HeapPage) {
+            HeapPage hp = (HeapPage) p;
+            return new Layout(0, hp.numSlots, hp.td.getSize());
+        }
+        if (p instanceof BTreeLeafPage) {
+            BTreeLeafPage lp = (BTreeLeafPage) p;
+            return new Layout(3 * BTreePage.INDEX_SIZE, lp.getMaxTuples(), lp.td.getSize());
+        }
+        return null;
+    }
+
+    /**
+     * @return the delta turning before into after, or null if the change is
+     *         not one of whole tuples, e.g. new sibling pointers, or the
+     *         delta would not be smaller than a page
+     */
+    public static byte[] diff(Page before, Page after) {
+        Layout l = layout(after);
+        if (l == null || !before.getClass().equals(after.getClass())) {
+            return null;
+        }
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        if (!equal(b, a, 0, l.headerOffset) || !equal(b, a, l.end(), a.length)) {
+            return null;
+        }
+        // unused bits at the end of the bitmap
+        int last = l.headerOffset + l.numSlots / 8;
+        if (l.numSlots % 8 != 0 && ((b[last] ^ a[last]) & (0xff << (l.numSlots % 8)) & 0xff) != 0) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(l.headerOffset);
+            int ops = 0;
+            ByteArrayOutputStream opBytes = new ByteArrayOutputStream();
+            DataOutputStream op = new DataOutputStream(opBytes);
+            for (int slot = 0; slot < l.numSlots; slot++) {
+                int off = l.slotOffset(slot);
+                int end = off + l.slotSize;
+                boolean wasUsed = isUsed(b, l.headerOffset, slot);
+                boolean isUsed = isUsed(a, l.headerOffset, slot);
+                if (wasUsed == isUsed) {
+                    int from = off;
+                    while (from < end && b[from] == a[from]) {
+                        from++;
+                    }
+                    if (from == end) {
+                        continue;
+                    }
+                    if (!isUsed) {
+                        // garbage in an empty slot
+                        return null;
+                    }
+                    int to = end;
+                    while (b[to - 1] == a[to - 1]) {
+                        to--;
+                    }
+                    op.writeByte(UPDATE_FIELD);
+                    op.writeInt(slot);
+                    op.writeInt(from);
+                    op.writeInt(to - from);
+                    op.write(b, from, to - from);
+                    op.write(a, from, to - from);
+                } else {
+                    // the other side has to be empty, so that only the
+                    // bytes of the tuple need to be logged
+                    byte[] empty = isUsed ? b : a;
+                    byte[] tuple = isUsed ? a : b;
+                    if (!isZero(empty, off, end)) {
+                        return null;
+                    }
+                    int to = end;
+                    while (to > off && tuple[to - 1] == 0) {
+                        to--;
+                    }
+                    op.writeByte(isUsed ? INSERT_SLOT : DELETE_SLOT);
+                    op.writeInt(slot);
+                    op.writeInt(off);
+                    op.writeInt(to - off);
+                    op.write(tuple, off, to - off);
+                }
+                ops++;
+                if (opBytes.size() >= a.length) {
+                    return null;
+                }
+            }
+            out.writeInt(ops);
+            opBytes.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            // in memory, cannot happen
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Apply delta to the data of a page in place.
+     *
+     * @param undo whether to set the changed bytes back to their old values
+     *        instead of to their new ones
+     */
+    public static void apply(byte[] delta, byte[] data, boolean undo) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        int headerOffset = in.getInt();
+        int ops = in.getInt();
+        for (int i = 0; i < ops; i++) {
+            byte type = in.get();
+            int slot = in.getInt();
+            int off = in.getInt();
+            int len = in.getInt();
+            switch (type) {
+            case INSERT_SLOT:
+            case DELETE_SLOT:
+                boolean used = (type == INSERT_SLOT) != undo;
+                setUsed(data, headerOffset, slot, used);
+                if (used) {
+                    in.get(data, off, len);
+                } else {
+                    in.position(in.position() + len);
+                    for (int j = off; j < off + len; j++) {
+                        data[j] = 0;
+                    }
+                }
+                break;
+            case UPDATE_FIELD:
+                if (undo) {
+                    in.get(data, off, len);
+                    in.position(in.position() + len);
+                } else {
+                    in.position(in.position() + len);
+                    in.get(data, off, len);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown delta operation " + type);
+            }
+        }
+    }
+
+    private static boolean isUsed(byte[] data, int headerOffset, int slot) {
+        return (data[headerOffset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private static void setUsed(byte[] data, int headerOffset, int slot, boolean used) {
+        if (used) {
+            data[headerOffset + slot / 8] |= 1 << (slot % 8);
+        } else {
+            data[headerOffset + slot / 8] &= ~(1 << (slot % 8));
+        }
+    }
+
+    private static boolean isZero(byte[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(byte[] a, byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
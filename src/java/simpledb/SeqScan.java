@@ -1,8 +1,7 @@
 package simpledb;
 
-import org.omg.IOP.TAG_ALTERNATE_IIOP_ADDRESS;
+import simpledb.utils.BufferRing;
 
-import java.awt.image.DataBuffer;
 import java.util.*;
 
 /**
@@ -21,6 +20,8 @@ public class SeqScan implements OpIterator {
     private String tableAlias;
 
     private DbFileIterator iterator;
+
+    private BufferRing ring;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -42,7 +43,28 @@ public class SeqScan implements OpIterator {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            // large tables are read through a private ring of frames so the
+            // scan does not flush the rest of the buffer pool
+            HeapFile heapFile = (HeapFile) file;
+            this.ring = Database.getBufferPool().newScanRing(heapFile.numPages());
+            this.iterator = heapFile.iterator(tid, ring);
+        } else {
+            this.iterator = file.iterator(tid);
+        }
+    }
+
+    /**
+     * Only return the tuples that pass the predicate. On a heap file the
+     * predicate runs on the raw page data, so rejected tuples are never
+     * built. Must be called before the scan is opened.
+     */
+    public void pushDown(Predicate predicate) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile) {
+            this.iterator = ((HeapFile) file).iterator(tid, ring, predicate);
+        }
     }
 
     /**
@@ -54,6 +76,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction the scan runs as a part of
+     */
+    TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two relations by sorting both on their
+ * join fields and merging them. It handles equality and range predicates:
+ * for each outer tuple the matching inner tuples form a run of the sorted
+ * inner relation, and the bounds of that run only move forward as the outer
+ * tuples grow, so each relation is compared in a single pass after sorting.
+ * <p>
+ * Like {@link OrderBy}, both relations are sorted in memory.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    transient private ArrayList<Tuple> outer;
+    transient private ArrayList<Tuple> inner;
+    // the outer tuple being joined, and the run of inner tuples it matches
+    transient private int outerPos;
+    transient private int lo, hi, next;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; anything but
+     *            NOT_EQUALS and LIKE
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canJoin(p.getOperator())) {
+            throw new IllegalArgumentException("cannot sort-merge on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return whether a sort-merge join can evaluate predicates with op
+     */
+    public static boolean canJoin(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    private static ArrayList<Tuple> sort(OpIterator child, int field)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (child.hasNext()) {
+            tuples.add(child.next());
+        }
+        Collections.sort(tuples, new TupleComparator(field, true));
+        return tuples;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        outer = sort(child1, pred.getField1());
+        inner = sort(child2, pred.getField2());
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        outer = null;
+        inner = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the sorted relations are kept, so there is nothing to read again
+        start();
+    }
+
+    private void start() {
+        outerPos = -1;
+        lo = hi = next = 0;
+    }
+
+    /**
+     * @return whether inner field v sorts before all the matches of outer
+     *         field t
+     */
+    private boolean before(Field v, Field t) {
+        switch (pred.getOperator()) {
+        case EQUALS:
+        case LESS_THAN_OR_EQ:
+            return v.compare(Predicate.Op.LESS_THAN, t);
+        case LESS_THAN:
+            return v.compare(Predicate.Op.LESS_THAN_OR_EQ, t);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return whether inner field v sorts after all the matches of outer
+     *         field t
+     */
+    private boolean after(Field v, Field t) {
+        switch (pred.getOperator()) {
+        case EQUALS:
+        case GREATER_THAN_OR_EQ:
+            return v.compare(Predicate.Op.GREATER_THAN, t);
+        case GREATER_THAN:
+            return v.compare(Predicate.Op.GREATER_THAN_OR_EQ, t);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of the joining outer and
+     * inner tuples, in the order of the outer join field.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (next >= hi) {
+            if (++outerPos >= outer.size()) {
+                return null;
+            }
+            Field t = outer.get(outerPos).getField(pred.getField1());
+            while (lo < inner.size() && before(inner.get(lo).getField(pred.getField2()), t)) {
+                lo++;
+            }
+            hi = Math.max(hi, lo);
+            while (hi < inner.size() && !after(inner.get(hi).getField(pred.getField2()), t)) {
+                hi++;
+            }
+            next = lo;
+        }
+        Tuple t1 = outer.get(outerPos);
+        Tuple t2 = inner.get(next++);
+        Tuple t = new Tuple(comboTD);
+        int td1n = t1.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -25,6 +25,15 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only one, which reads a snapshot of
+     * the database as of its start without taking locks.
+     */
+    public void startReadOnly() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -47,8 +56,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //write all the dirty pages for this transaction out, or
+                //only log them under NO-FORCE
+                Database.getBufferPool().prepareCommit(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -0,0 +1,43 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+
+/**
+ * A small private ring of buffer frames for bulk reads, like the ring buffers
+ * PostgreSQL gives to large sequential scans. Every page a scan brings into
+ * the BufferPool takes one slot; once the ring is full the page in the next
+ * slot is handed back to be recycled, so the scan keeps reusing the same few
+ * frames instead of flushing the working set of everybody else.
+ * <p>
+ * A ring belongs to a single scan and is not thread safe.
+ */
+public class BufferRing {
+
+    private final PageId[] slots;
+    private int next;
+
+    public BufferRing(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("ring size must be positive");
+        }
+        this.slots = new PageId[size];
+        this.next = 0;
+    }
+
+    /**
+     * Put a page that was just read for the scan into the next slot.
+     *
+     * @return the page that used to occupy the slot and should now be
+     *         recycled, or null while the ring is still filling up
+     */
+    public PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+
+    public int size() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. An access only sets the reference bit of
+ * the frame; the hand clears bits as it sweeps and evicts the first evictable
+ * frame whose bit is already clear.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    static class Frame {
+        final PageId pid;
+        volatile boolean referenced = true;
+        volatile boolean removed = false;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    // the ring; the head is the position of the clock hand
+    private final ConcurrentLinkedQueue<Frame> ring;
+
+    public ClockPolicy(int capacity) {
+        this.frames = new ConcurrentHashMap<>(capacity);
+        this.ring = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public void recordInsert(PageId pid) {
+        Frame frame = new Frame(pid);
+        Frame old = frames.put(pid, frame);
+        if (old != null) {
+            old.removed = true;
+        }
+        ring.offer(frame);
+    }
+
+    @Override
+    public void recordAccess(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame != null) {
+            frame.referenced = true;
+        }
+    }
+
+    @Override
+    public void remove(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame != null) {
+            frame.removed = true;
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        // two full sweeps: the first may only clear reference bits
+        int budget = 2 * ring.size() + 1;
+        while (budget-- > 0) {
+            Frame frame = ring.poll();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.removed) {
+                continue;
+            }
+            if (!frame.referenced && evictable.test(frame.pid)) {
+                ring.offer(frame);
+                return frame.pid;
+            }
+            frame.referenced = false;
+            ring.offer(frame);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,32 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+
+import java.util.function.Predicate;
+
+/**
+ * Page replacement policy used by the BufferPool.
+ * <p>
+ * recordInsert/recordAccess/remove are called on the getPage() hot path and
+ * must be O(1) without taking a policy-wide lock. chooseVictim is only called
+ * from BufferPool.evictPage(), which is serialized by the BufferPool itself.
+ */
+public interface EvictionPolicy {
+
+    /** A page was read into the pool. */
+    void recordInsert(PageId pid);
+
+    /** A page already resident in the pool was requested again. */
+    void recordAccess(PageId pid);
+
+    /** A page left the pool (evicted or discarded). */
+    void remove(PageId pid);
+
+    /**
+     * Pick the page to evict next.
+     *
+     * @param evictable tells whether a resident page may be evicted (e.g. it is clean)
+     * @return the victim, or null if no resident page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
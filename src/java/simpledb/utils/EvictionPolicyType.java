@@ -0,0 +1,33 @@
+package simpledb.utils;
+
+/**
+ * The replacement policies a BufferPool can be built with. The default one is
+ * picked with the system property {@value #PROPERTY}, e.g.
+ * <code>-Dsimpledb.eviction=LRU_K</code>.
+ */
+public enum EvictionPolicyType {
+    CLOCK,
+    LRU_K,
+    TWO_Q;
+
+    public static final String PROPERTY = "simpledb.eviction";
+
+    public EvictionPolicy create(int capacity) {
+        switch (this) {
+            case LRU_K:
+                return new LruKPolicy(capacity);
+            case TWO_Q:
+                return new TwoQueuePolicy(capacity);
+            default:
+                return new ClockPolicy(capacity);
+        }
+    }
+
+    public static EvictionPolicyType fromConfig() {
+        String name = System.getProperty(PROPERTY);
+        if (name == null) {
+            return CLOCK;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
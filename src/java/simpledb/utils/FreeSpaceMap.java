@@ -0,0 +1,151 @@
+package simpledb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Approximate free space of every page of a HeapFile, kept in a side file
+ * next to it (one byte per page, like the PostgreSQL free space map) so that
+ * inserts can go straight to a page with room instead of locking every page
+ * of the table in turn.
+ * <p>
+ * A byte holds the fraction of free slots of its page scaled to
+ * 1..{@link #MAX_CATEGORY}, rounded up so that any free slot counts, or 0
+ * if the page is full. Pages that have never been recorded are
+ * {@link #UNKNOWN} and treated as candidates. The map is only a hint: it
+ * may be stale after an abort or a crash, so callers check the page itself
+ * and record what they saw.
+ * <p>
+ * The map is saved with each checkpoint rather than with every page write.
+ * The side file starts with the length the data file had when the map was
+ * last saved. A map whose length does not match the data file when it is
+ * opened belongs to an older version of the table and is discarded.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    public static final int MAX_CATEGORY = 254;
+    public static final int UNKNOWN = 255;
+    private static final int HEADER = 8;
+
+    private final File file;
+    private final File data;
+    // length of the data file when the map was opened
+    private final long dataLength;
+    private final PageChannel channel;
+    private byte[] categories;
+    // no page below this one has free space
+    private int firstFree;
+    private boolean loaded;
+    // changed since it was loaded or last saved
+    private boolean dirty;
+
+    /**
+     * @param file the side file of the map, created on the first save
+     * @param data the data file the map describes
+     */
+    public FreeSpaceMap(File file, File data) {
+        this.file = file;
+        this.data = data;
+        this.dataLength = data.length();
+        this.channel = new PageChannel(file);
+        this.categories = new byte[0];
+    }
+
+    public static int category(int freeSlots, int totalSlots) {
+        if (freeSlots <= 0 || totalSlots <= 0) {
+            return 0;
+        }
+        return Math.max(1, (int) Math.ceil((double) freeSlots * MAX_CATEGORY / totalSlots));
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        byte[] bytes = new byte[(int) channel.size()];
+        int n = channel.read(0, bytes);
+        if (n < HEADER || ByteBuffer.wrap(bytes).getLong() != dataLength) {
+            // written for another version of the data file
+            channel.close();
+            file.delete();
+            return;
+        }
+        categories = Arrays.copyOfRange(bytes, HEADER, n);
+    }
+
+    private void ensureCapacity(int pages) {
+        if (pages > categories.length) {
+            int old = categories.length;
+            categories = Arrays.copyOf(categories, Math.max(pages, 2 * old));
+            Arrays.fill(categories, old, categories.length, (byte) UNKNOWN);
+        }
+    }
+
+    /**
+     * Find the first page at or after from that may have a free slot.
+     *
+     * @param numPages number of pages in the file
+     * @return the page number, or -1 if every page is known to be full
+     */
+    public synchronized int nextCandidate(int from, int numPages) throws IOException {
+        load();
+        for (int pgno = Math.max(from, firstFree); pgno < numPages; pgno++) {
+            if (pgno >= categories.length || categories[pgno] != 0) {
+                return pgno;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized int get(int pgno) throws IOException {
+        load();
+        return pgno < categories.length ? categories[pgno] & 0xFF : UNKNOWN;
+    }
+
+    /**
+     * Record the free space of a page in memory.
+     */
+    public synchronized void update(int pgno, int freeSlots, int totalSlots) throws IOException {
+        load();
+        ensureCapacity(pgno + 1);
+        int c = category(freeSlots, totalSlots);
+        if (categories[pgno] != (byte) c) {
+            categories[pgno] = (byte) c;
+            dirty = true;
+        }
+        if (c != 0 && pgno < firstFree) {
+            firstFree = pgno;
+        } else if (c == 0 && pgno == firstFree) {
+            while (firstFree < categories.length && categories[firstFree] == 0) {
+                firstFree++;
+            }
+        }
+    }
+
+    /**
+     * Write the map and the current length of the data file to the side file
+     * with a single write, if the map changed since it was last saved and the
+     * data file still exists.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty || !data.exists()) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + categories.length);
+        buf.putLong(data.length()).put(categories);
+        channel.write(0, buf.array());
+        dirty = false;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb.utils;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Batches the syncs of a log. A committer asks for its LSN to become durable
+ * and gets a future; a single flusher thread waits for the batching window to
+ * collect more committers, then syncs once for all of them. Committers that
+ * arrive while a sync is running are batched into the next one.
+ * <p>
+ * The window is read from the system property {@value #PROPERTY} in
+ * microseconds. With the default of 0 a lone committer pays no extra latency,
+ * and batches still form under load out of the commits that queue up behind
+ * a running sync.
+ *
+ * @Threadsafe
+ */
+public class GroupCommitter {
+
+    public static final String PROPERTY = "simpledb.groupCommitWindowMicros";
+
+    /** The log being synced. */
+    public interface Syncable {
+        /**
+         * Write out and force everything appended so far.
+         *
+         * @return the LSN everything before which is now durable
+         */
+        long sync() throws IOException;
+    }
+
+    private final Syncable log;
+    private final ThreadPoolExecutor flusher;
+    private volatile long windowNanos;
+
+    // protected by this
+    private long durableLsn;
+    private boolean scheduled;
+    private final TreeMap<Long, CompletableFuture<Long>> waiting = new TreeMap<>();
+    private long syncs;
+
+    public GroupCommitter(Syncable log) {
+        this.log = log;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong(PROPERTY, 0));
+        flusher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "LogFile-flusher");
+                    t.setDaemon(true);
+                    return t;
+                });
+        flusher.allowCoreThreadTimeOut(true);
+    }
+
+    public void setWindow(long time, TimeUnit unit) {
+        windowNanos = unit.toNanos(time);
+    }
+
+    public long getWindow(TimeUnit unit) {
+        return unit.convert(windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return a future completed with the durable LSN once lsn is durable
+     */
+    public synchronized CompletableFuture<Long> durable(long lsn) {
+        if (lsn <= durableLsn) {
+            return CompletableFuture.completedFuture(durableLsn);
+        }
+        CompletableFuture<Long> f = waiting.computeIfAbsent(lsn, k -> new CompletableFuture<>());
+        if (!scheduled) {
+            scheduled = true;
+            flusher.execute(this::flush);
+        }
+        return f;
+    }
+
+    /**
+     * Wait until lsn is durable. Interrupts are deferred, as the caller
+     * cannot tell whether its commit record made it.
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        CompletableFuture<Long> f = durable(lsn);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    f.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized boolean isDurable(long lsn) {
+        return lsn <= durableLsn;
+    }
+
+    /**
+     * Record that the log was synced up to lsn by someone else, e.g. by a
+     * synchronous force.
+     */
+    public synchronized void synced(long lsn) {
+        if (lsn > durableLsn) {
+            durableLsn = lsn;
+        }
+        Iterator<Map.Entry<Long, CompletableFuture<Long>>> it =
+                waiting.headMap(durableLsn, true).entrySet().iterator();
+        while (it.hasNext()) {
+            it.next().getValue().complete(durableLsn);
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the number of syncs done for committers so far
+     */
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    private void flush() {
+        long deadline = System.nanoTime() + windowNanos;
+        for (long left = windowNanos; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+        long upTo;
+        synchronized (this) {
+            // whoever comes from now on may miss this sync and needs the next
+            scheduled = false;
+            if (waiting.isEmpty()) {
+                return;
+            }
+            upTo = waiting.lastKey();
+            syncs++;
+        }
+        try {
+            synced(log.sync());
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                Iterator<CompletableFuture<Long>> it = waiting.headMap(upTo, true).values().iterator();
+                while (it.hasNext()) {
+                    it.next().completeExceptionally(e);
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+import simpledb.TransactionId;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Page latches, kept apart from the transactional locks of the LockManager.
+ * <p>
+ * Readers only ever try to latch, and never wait while holding a latch, so
+ * a writer waiting for them never waits long. A writer must hold the X lock
+ * of a page before latching it exclusively: a reader that finds the latch
+ * taken waits for the lock instead, where the wait-for graph can see it.
+ *
+ * @Threadsafe
+ */
+public class LatchManager {
+
+    // an entry stays while somebody writes the page or remembers its
+    // version, so versions are only compared with the latch they came from
+    private final ConcurrentHashMap<PageId, PageLatch> latches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> exclusive = new ConcurrentHashMap<>();
+
+    // the latch of pid, with one more reference to it
+    private PageLatch reference(PageId pid) {
+        return latches.compute(pid, (k, latch) -> {
+            if (latch == null) {
+                latch = new PageLatch();
+            }
+            latch.refs++;
+            return latch;
+        });
+    }
+
+    // drop a reference, and the entry with the last one
+    private void dereference(PageId pid) {
+        latches.computeIfPresent(pid, (k, latch) -> --latch.refs == 0 ? null : latch);
+    }
+
+    /**
+     * Latch pid for reading unless someone else writes it. The version is
+     * remembered until {@link #forget(Collection)}.
+     *
+     * @return the version of the page, or -1 if it is latched for writing
+     */
+    public long tryLatchShared(TransactionId tid, PageId pid) {
+        PageLatch latch = reference(pid);
+        synchronized (latch) {
+            if (latch.readable(tid)) {
+                latch.readers++;
+                return latch.version;
+            }
+        }
+        dereference(pid);
+        return -1;
+    }
+
+    public void unlatchShared(PageId pid) {
+        PageLatch latch = latches.get(pid);
+        synchronized (latch) {
+            if (--latch.readers == 0) {
+                latch.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Latch pid for writing until {@link #unlatchAll(TransactionId)}. Waits
+     * for the current readers, which hold their latches only briefly.
+     */
+    public void latchExclusive(TransactionId tid, PageId pid) {
+        PageLatch latch = reference(pid);
+        synchronized (latch) {
+            if (tid.equals(latch.writer)) {
+                dereference(pid);
+                return;
+            }
+            boolean interrupted = false;
+            while (latch.writer != null || latch.readers > 0) {
+                try {
+                    latch.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            latch.writer = tid;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exclusive.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * Release the exclusive latches of tid, e.g. at the end of an insert.
+     */
+    public void unlatchAll(TransactionId tid) {
+        Set<PageId> pids = exclusive.remove(tid);
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            PageLatch latch = latches.get(pid);
+            synchronized (latch) {
+                latch.writer = null;
+                latch.version++;
+                latch.notifyAll();
+            }
+            dereference(pid);
+        }
+    }
+
+    /**
+     * The page was dropped from the pool, so readers holding on to it have
+     * to look again.
+     */
+    public void invalidate(PageId pid) {
+        PageLatch latch = latches.get(pid);
+        if (latch != null) {
+            synchronized (latch) {
+                latch.version++;
+            }
+        }
+    }
+
+    /**
+     * @param seen the versions of the pages read by tid, not forgotten yet
+     * @return true if none of the pages changed or is being changed since
+     */
+    public boolean validate(TransactionId tid, Map<PageId, Long> seen) {
+        for (Map.Entry<PageId, Long> e : seen.entrySet()) {
+            PageLatch latch = latches.get(e.getKey());
+            if (latch == null) {
+                return false;
+            }
+            synchronized (latch) {
+                if (!latch.readable(tid) || latch.version != e.getValue()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The versions of pids, each taken by one {@link #tryLatchShared}, will
+     * not be validated any more.
+     */
+    public void forget(Collection<PageId> pids) {
+        for (PageId pid : pids) {
+            dereference(pid);
+        }
+    }
+
+    /**
+     * @return the number of pages with a latch entry
+     */
+    public int size() {
+        return latches.size();
+    }
+
+    /**
+     * @return true if somebody latched pid for writing
+     */
+    public boolean isLatchedExclusive(PageId pid) {
+        PageLatch latch = latches.get(pid);
+        if (latch == null) {
+            return false;
+        }
+        synchronized (latch) {
+            return latch.writer != null;
+        }
+    }
+
+    /**
+     * @return the pages tid holds exclusive latches on
+     */
+    public Set<PageId> getExclusiveLatches(TransactionId tid) {
+        Set<PageId> pids = exclusive.get(tid);
+        return pids == null ? new HashSet<>() : new HashSet<>(pids);
+    }
+}
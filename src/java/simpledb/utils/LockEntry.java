@@ -0,0 +1,12 @@
+package simpledb.utils;
+
+/**
+ * Entry of a LockManager lock table. The entry is the monitor its waiters
+ * block on.
+ */
+abstract class LockEntry {
+    // threads blocked in LockManager on this lock
+    int waiters;
+    // dropped from the lock table; acquirers must look it up again
+    boolean removed;
+}
@@ -3,151 +3,443 @@ package simpledb.utils;
 import simpledb.*;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Page and table lock table. There is no lock around the whole table: every
+ * lock entry is its own monitor and wait queue, so requests on different
+ * pages never contend and a release only wakes the waiters of that page.
+ * Deadlocks are found in a {@link WaitForGraph} as soon as they form.
+ * <p>
+ * Locks are multi-granularity: before a page lock a transaction takes the
+ * matching intention lock (IS or IX) on the table of the page, and a table
+ * lock in S, SIX or X makes the page locks it covers unnecessary. A
+ * transaction that piles up page locks on one table is escalated to a table
+ * lock once that can be granted without waiting, and its page locks there
+ * are dropped.
+ */
 public class LockManager {
 
+    /** Page locks a transaction may hold on one table before escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 256;
+
     private ConcurrentHashMap<PageId, ObjLock> lockTable;
-    private ConcurrentHashMap<TransactionId, ArrayList<PageId>> transactionTable;
+    private final ConcurrentHashMap<Integer, TableLock> tableLocks = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<TransactionId, TransactionLocks> transactionTable;
+    private final WaitForGraph waitForGraph = new WaitForGraph();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final AtomicLong escalations = new AtomicLong();
 
     public LockManager(int lockTabCap, int transTabCap) {
         this.lockTable = new ConcurrentHashMap<>(lockTabCap);
         this.transactionTable = new ConcurrentHashMap<>(transTabCap);
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        ArrayList<PageId> lockList = getLockList(tid);
-        return lockList != null && lockList.contains(pid);
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
     }
 
-    private synchronized void block(PageId what, long start, long timeout)
-            throws TransactionAbortedException {
-        // activate blocking
-        // lockTable.get(what).setBlocked(true);
+    private TransactionLocks locksOf(TransactionId tid) {
+        return transactionTable.computeIfAbsent(tid, k -> new TransactionLocks());
+    }
 
-        if (System.currentTimeMillis() - start > timeout) {
-            // System.out.println(Thread.currentThread().getId() + ": aborted");
-            throw new TransactionAbortedException();
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        TransactionLocks locks = transactionTable.get(tid);
+        if (locks == null) {
+            return false;
+        }
+        synchronized (locks) {
+            return locks.pages.contains(pid) || locks.tableCovers(pid, LockType.SLock);
         }
+    }
 
-        try {
-            wait(timeout);
-            if (System.currentTimeMillis() - start > timeout) {
-                // System.out.println(Thread.currentThread().getId() + ": aborted");
+    /**
+     * @return true if another transaction holds a lock on pid, either on the
+     *         page itself or on its table in a mode that covers the page
+     */
+    public boolean isLockedByOthers(TransactionId tid, PageId pid) {
+        TableLock table = tableLocks.get(pid.getTableId());
+        if (table != null) {
+            synchronized (table) {
+                for (Map.Entry<TransactionId, LockType> e : table.holders.entrySet()) {
+                    if (!e.getKey().equals(tid) && e.getValue().covers(LockType.SLock)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        ObjLock lock = lockTable.get(pid);
+        if (lock == null) {
+            return false;
+        }
+        synchronized (lock) {
+            for (TransactionId holder : lock.getHolders()) {
+                if (!holder.equals(tid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait on the monitor of lock until it is released, tid is chosen as a
+     * deadlock victim, or the timeout expires, if there is one. The caller
+     * holds the monitor.
+     */
+    private void block(LockEntry lock, long start, long timeout)
+            throws TransactionAbortedException {
+        long remaining = 0;
+        if (timeout > 0) {
+            remaining = timeout - (System.currentTimeMillis() - start);
+            if (remaining <= 0) {
                 throw new TransactionAbortedException();
             }
+        }
+
+        lock.waiters++;
+        try {
+            lock.wait(remaining);
         } catch (InterruptedException e) {
             /* do nothing */
             e.printStackTrace();
+        } finally {
+            lock.waiters--;
         }
     }
 
-    private synchronized void updateTransactionTable(TransactionId tid, PageId pid) {
-        if (transactionTable.containsKey(tid)) {
-            if (!transactionTable.get(tid).contains(pid)) {
-                transactionTable.get(tid).add(pid);
+    /**
+     * Try to grant reqLock on lock to tid. The caller holds the monitor.
+     *
+     * @return true if tid holds the lock now
+     */
+    private boolean tryGrant(ObjLock lock, TransactionId tid, LockType reqLock) {
+        if (lock.getHolders().isEmpty()) {
+            // nobody holds the page
+            lock.setType(reqLock);
+            lock.getHolders().add(tid);
+        } else if (lock.getType() == LockType.SLock) {
+            if (reqLock == LockType.SLock) {
+                lock.addHolder(tid);
+            } else if (!lock.tryUpgradeLock(tid)) {
+                // XLock requested while others share the page
+                return false;
             }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pid);
-            transactionTable.put(tid, lockList);
+        } else if (!lock.getHolders().contains(tid)) {
+            // somebody else holds the XLock
+            return false;
+        }
+        if (lock.waiters > 0) {
+            waitForGraph.granted(lock.getObj(), tid);
+        }
+        return true;
+    }
+
+    /**
+     * Try to grant the table lock in mode to tid, on top of what tid holds
+     * there already. The caller holds the monitor.
+     *
+     * @return true if tid holds the table in mode or stronger now
+     */
+    private boolean tryGrant(TableLock lock, TransactionId tid, LockType mode) {
+        LockType held = lock.holders.get(tid);
+        LockType want = held == null ? mode : held.combine(mode);
+        if (!lock.grantable(tid, want)) {
+            return false;
+        }
+        lock.holders.put(tid, want);
+        if (lock.waiters > 0) {
+            waitForGraph.granted(lock.tableId, tid);
         }
+        TransactionLocks locks = locksOf(tid);
+        synchronized (locks) {
+            locks.tables.put(lock.tableId, want);
+        }
+        return true;
     }
 
-    public synchronized void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
+    /**
+     * Acquire reqLock on pid for tid, blocking while other transactions hold
+     * conflicting locks. If the wait closes a cycle in the wait-for graph,
+     * the youngest transaction of the cycle is aborted right away; if it is
+     * not tid, tid keeps waiting.
+     *
+     * @param maxTimeout abort after waiting this long in ms anyway, 0 to
+     *        wait until the lock is granted or tid is a deadlock victim
+     */
+    public void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
             throws TransactionAbortedException {
-        // boolean isAcquired = false;
         long start = System.currentTimeMillis();
-        Random rand = new Random();
-        long randomTimeout = rand.nextInt((maxTimeout - 0) + 1) + 0;
-        while (true) {
-            if (lockTable.containsKey(pid)) {
-                // page is locked by some transaction
-                if (lockTable.get(pid).getType() == LockType.SLock) {
-                    if (reqLock == LockType.SLock) {
-                        updateTransactionTable(tid, pid);
-                        assert lockTable.get(pid).addHolder(tid) != null;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // request XLock
-                        if (transactionTable.containsKey(tid) && transactionTable.get(tid).contains(pid)
-                                && lockTable.get(pid).getHolders().size() == 1) {
-                            // sanity check
-                            assert lockTable.get(pid).getHolders().get(0) == tid;
-                            // this is a combined case when lock on pid hold only by one trans (which is exactly tid)
-                            lockTable.get(pid).tryUpgradeLock(tid);
-                            // isAcquired = true;
-                            return;
-                        } else {
-                            // all need to do is just blocking
-                            block(pid, start, randomTimeout);
+        acquireTableLock(tid, pid.getTableId(), reqLock.intention(), start, maxTimeout);
+        TransactionLocks locks = locksOf(tid);
+        synchronized (locks) {
+            if (locks.tableCovers(pid, reqLock)) {
+                return;
+            }
+        }
+        int count;
+        try {
+            while (true) {
+                ObjLock lock = lockTable.computeIfAbsent(pid, k -> new ObjLock(null, k));
+                boolean mayDeadlock;
+                synchronized (lock) {
+                    if (lock.removed) {
+                        // released and dropped from the table under us; look again
+                        continue;
+                    }
+                    if (waitForGraph.isVictim(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (tryGrant(lock, tid, reqLock)) {
+                        synchronized (locks) {
+                            count = locks.addPage(pid);
                         }
+                        break;
                     }
-                } else {
-                    // already get a Xlock on pid
-                    if (lockTable.get(pid).getHolders().get(0) == tid) {
-                        // Xlock means only one holder
-                        // request xlock or slock on the pid with that tid
-                        // sanity check
-                        assert lockTable.get(pid).getHolders().size() == 1;
-                        // isAcquired = true;
+                    mayDeadlock = waitForGraph.waitOn(tid, pid, lock.getHolders());
+                    if (!mayDeadlock) {
+                        block(lock, start, maxTimeout);
+                    }
+                }
+                if (mayDeadlock) {
+                    resolveDeadlock(tid);
+                }
+            }
+        } finally {
+            waitForGraph.stopWaiting(tid);
+        }
+        if (count % escalationThreshold == 0) {
+            escalate(tid, pid.getTableId());
+        }
+    }
+
+    /**
+     * Acquire a lock on a whole table, e.g. an SLock for a full scan, which
+     * spares the scan a lock per page.
+     *
+     * @param mode the mode to lock the table in
+     * @param maxTimeout abort after waiting this long in ms anyway, 0 to
+     *        wait until the lock is granted or tid is a deadlock victim
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockType mode, int maxTimeout)
+            throws TransactionAbortedException {
+        acquireTableLock(tid, tableId, mode, System.currentTimeMillis(), maxTimeout);
+    }
+
+    private void acquireTableLock(TransactionId tid, int tableId, LockType mode, long start, long maxTimeout)
+            throws TransactionAbortedException {
+        TransactionLocks locks = locksOf(tid);
+        synchronized (locks) {
+            LockType held = locks.tables.get(tableId);
+            if (held != null && held.covers(mode)) {
+                return;
+            }
+        }
+        try {
+            while (true) {
+                TableLock lock = tableLocks.computeIfAbsent(tableId, TableLock::new);
+                boolean mayDeadlock;
+                synchronized (lock) {
+                    if (lock.removed) {
+                        continue;
+                    }
+                    if (waitForGraph.isVictim(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (tryGrant(lock, tid, mode)) {
                         return;
-                    } else {
-                        // otherwise block
-                        block(pid, start, randomTimeout);
                     }
+                    mayDeadlock = waitForGraph.waitOn(tid, tableId, lock.holders.keySet());
+                    if (!mayDeadlock) {
+                        block(lock, start, maxTimeout);
+                    }
+                }
+                if (mayDeadlock) {
+                    resolveDeadlock(tid);
                 }
-            } else {
-                ArrayList<TransactionId> initialHolders = new ArrayList<>();
-                initialHolders.add(tid);
-                lockTable.put(pid, new ObjLock(reqLock, pid, initialHolders));
-                updateTransactionTable(tid, pid);
-                // isAcquired = true;
+            }
+        } finally {
+            waitForGraph.stopWaiting(tid);
+        }
+    }
+
+    /**
+     * Replace the page locks tid holds on a table by one table lock, if the
+     * table lock can be had without waiting. Escalating never blocks, so it
+     * cannot cause a deadlock.
+     */
+    private void escalate(TransactionId tid, int tableId) {
+        TransactionLocks locks = locksOf(tid);
+        LockType mode;
+        synchronized (locks) {
+            // IS means only shared page locks were taken
+            mode = locks.tables.get(tableId) == LockType.ISLock ? LockType.SLock : LockType.XLock;
+        }
+        TableLock lock = tableLocks.get(tableId);
+        if (lock == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (lock.removed || !tryGrant(lock, tid, mode)) {
                 return;
             }
         }
+        escalations.incrementAndGet();
+        ArrayList<PageId> covered = new ArrayList<>();
+        synchronized (locks) {
+            for (PageId pid : locks.pages) {
+                if (pid.getTableId() == tableId) {
+                    covered.add(pid);
+                }
+            }
+        }
+        for (PageId pid : covered) {
+            releaseLock(tid, pid);
+        }
+    }
+
+    // outside any lock monitor: waking a victim takes the monitor of its lock
+    private void resolveDeadlock(TransactionId tid) {
+        TransactionId victim = waitForGraph.detect(tid);
+        if (victim != null && !victim.equals(tid)) {
+            wake(victim);
+        }
+    }
+
+    private void wake(TransactionId tid) {
+        Object resource = waitForGraph.waitingOn(tid);
+        LockEntry lock = null;
+        if (resource instanceof PageId) {
+            lock = lockTable.get(resource);
+        } else if (resource != null) {
+            lock = tableLocks.get(resource);
+        }
+        if (lock != null) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
+    /** @return the number of deadlocks found so far */
+    public long getDeadlockCount() {
+        return waitForGraph.getDeadlockCount();
+    }
+
+    /** @return the number of deadlocks resolved by aborting the transaction that closed the cycle */
+    public long getRequesterVictimCount() {
+        return waitForGraph.getRequesterVictimCount();
+    }
+
+    /** @return the number of deadlocks resolved by aborting another, younger transaction */
+    public long getOtherVictimCount() {
+        return waitForGraph.getOtherVictimCount();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    public void releaseLock(TransactionId tid, PageId pid) {
 
         // remove from trans table
-        if (transactionTable.containsKey(tid)) {
-            transactionTable.get(tid).remove(pid);
-            if (transactionTable.get(tid).size() == 0) {
-                transactionTable.remove(tid);
+        TransactionLocks locks = transactionTable.get(tid);
+        if (locks != null) {
+            synchronized (locks) {
+                locks.removePage(pid);
             }
         }
 
         // remove from locktable
-        if (lockTable.containsKey(pid)) {
-            lockTable.get(pid).getHolders().remove(tid);
-            if (lockTable.get(pid).getHolders().size() == 0) {
-                // no more threads are waiting here
-                lockTable.remove(pid);
-            } else {
-                // ObjLock lock = lockTable.get(pid);
-                // synchronized (lock) {
-                notifyAll();
-                //}
+        ObjLock lock = lockTable.get(pid);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.getHolders().remove(tid);
+                if (lock.waiters > 0) {
+                    waitForGraph.released(pid, tid);
+                }
+                if (lock.getHolders().isEmpty() && lock.waiters == 0) {
+                    // no more threads are waiting here
+                    lock.removed = true;
+                    lockTable.remove(pid, lock);
+                } else {
+                    // only the waiters of this page
+                    lock.notifyAll();
+                }
             }
         }
     }
 
-    public synchronized void releaseLocksOnTransaction(TransactionId tid) {
-        if (transactionTable.containsKey(tid)) {
-            PageId[] pidArr = new PageId[transactionTable.get(tid).size()];
-            PageId[] toRelease = transactionTable.get(tid).toArray(pidArr);
-            for (PageId pid : toRelease) {
-                releaseLock(tid, pid);
+    private void releaseTableLock(TransactionId tid, int tableId) {
+        TableLock lock = tableLocks.get(tableId);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.holders.remove(tid);
+                if (lock.waiters > 0) {
+                    waitForGraph.released(tableId, tid);
+                }
+                if (lock.holders.isEmpty() && lock.waiters == 0) {
+                    lock.removed = true;
+                    tableLocks.remove(tableId, lock);
+                } else {
+                    lock.notifyAll();
+                }
             }
+        }
+    }
+
+    public void releaseLocksOnTransaction(TransactionId tid) {
+        TransactionLocks locks = transactionTable.get(tid);
+        if (locks == null) {
+            return;
+        }
+        ArrayList<Integer> tables;
+        synchronized (locks) {
+            tables = new ArrayList<>(locks.tables.keySet());
+        }
+        // pages first, so no page lock is ever held without its intention lock
+        for (PageId pid : getLockList(tid)) {
+            releaseLock(tid, pid);
+        }
+        for (int tableId : tables) {
+            releaseTableLock(tid, tableId);
+        }
+        transactionTable.remove(tid);
+    }
 
+    /**
+     * @return a copy of the pages tid holds page locks on
+     */
+    public ArrayList<PageId> getLockList(TransactionId tid) {
+        TransactionLocks locks = transactionTable.get(tid);
+        if (locks == null) {
+            return new ArrayList<>();
+        }
+        synchronized (locks) {
+            return new ArrayList<>(locks.pages);
         }
     }
 
-    public synchronized ArrayList<PageId> getLockList(TransactionId tid) {
-        return transactionTable.getOrDefault(tid, null);
+    /**
+     * @return the tables tid holds in a mode that covers page locks of mode
+     *         req, i.e. whose pages tid may access that way without page locks
+     */
+    public ArrayList<Integer> getTablesCovering(TransactionId tid, LockType req) {
+        ArrayList<Integer> tables = new ArrayList<>();
+        TransactionLocks locks = transactionTable.get(tid);
+        if (locks == null) {
+            return tables;
+        }
+        synchronized (locks) {
+            for (Map.Entry<Integer, LockType> e : locks.tables.entrySet()) {
+                if (e.getValue().covers(req)) {
+                    tables.add(e.getKey());
+                }
+            }
+        }
+        return tables;
     }
 }
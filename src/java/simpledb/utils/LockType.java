@@ -1,6 +1,74 @@
 package simpledb.utils;
 
+/**
+ * Lock modes. Pages are locked in SLock or XLock; tables may also be locked
+ * in the intention modes, which announce page locks of the same kind below
+ * them. SIXLock is what a table SLock becomes once its holder also wants to
+ * write some of the pages.
+ */
 public enum LockType {
     SLock,
-    XLock
+    XLock,
+    ISLock,
+    IXLock,
+    SIXLock;
+
+    /**
+     * @return true if a lock of this mode can be held while another
+     *         transaction holds one in mode other
+     */
+    public boolean compatibleWith(LockType other) {
+        switch (this) {
+            case ISLock:
+                return other != XLock;
+            case IXLock:
+                return other == ISLock || other == IXLock;
+            case SLock:
+                return other == ISLock || other == SLock;
+            case SIXLock:
+                return other == ISLock;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if holding this mode already grants everything req does
+     */
+    public boolean covers(LockType req) {
+        switch (this) {
+            case XLock:
+                return true;
+            case SIXLock:
+                return req != XLock;
+            case SLock:
+                return req == SLock || req == ISLock;
+            case IXLock:
+                return req == IXLock || req == ISLock;
+            default:
+                return req == ISLock;
+        }
+    }
+
+    /**
+     * @return the weakest mode covering both this mode and req
+     */
+    public LockType combine(LockType req) {
+        if (covers(req)) {
+            return this;
+        }
+        if (req.covers(this)) {
+            return req;
+        }
+        // the only modes neither of which covers the other: S and IX
+        return SIXLock;
+    }
+
+    /**
+     * @return the intention mode a transaction needs on a table before it
+     *         takes a page lock of this mode
+     */
+    public LockType intention() {
+        return this == SLock || this == ISLock ? ISLock : IXLock;
+    }
 }
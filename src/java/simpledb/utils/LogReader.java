@@ -0,0 +1,91 @@
+package simpledb.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a log sequentially through a buffer, keeping track of the LSN it
+ * reached. It does not move the writer, and several readers can run at once.
+ */
+public class LogReader extends DataInputStream {
+
+    private final Counter counter;
+    private final long start;
+
+    private LogReader(Counter counter, long start) {
+        super(counter);
+        this.counter = counter;
+        this.start = start;
+    }
+
+    /**
+     * @param log the log
+     * @param lsn the LSN to start reading at
+     */
+    public static LogReader open(LogSegments log, long lsn) {
+        InputStream in = new BufferedInputStream(log.newInputStream(lsn), LogWriter.BUFFER_SIZE);
+        return new LogReader(new Counter(in), lsn);
+    }
+
+    /**
+     * @return the LSN of the next byte to be read
+     */
+    public long position() {
+        return start + counter.count;
+    }
+
+    /**
+     * Skip exactly n bytes.
+     *
+     * @throws EOFException if the log ends first
+     */
+    public void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = skip(n);
+            if (skipped <= 0) {
+                if (read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static class Counter extends FilterInputStream {
+        long count;
+
+        Counter(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
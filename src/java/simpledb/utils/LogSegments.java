@@ -0,0 +1,320 @@
+package simpledb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A log stored as a sequence of segment files, addressed by LSN. Each
+ * segment is named after the log with the LSN of its first byte as suffix,
+ * e.g. <code>log.1048576</code>, and holds up to a fixed number of bytes.
+ * Appends go to the last segment and start a new one when it is full;
+ * truncation deletes whole segments, so neither ever copies any of the log.
+ * <p>
+ * The segment size is read from the system property {@value #PROPERTY}
+ * (default 16 MB) when the log is opened; segments written with another
+ * size keep theirs.
+ * <p>
+ * Appends, cuts at the end and resets are serialized by the owner; reads,
+ * forces and deleting segments at the front may run concurrently with
+ * them, as long as nobody reads the segments deleted.
+ */
+public class LogSegments implements GatheringByteChannel {
+
+    public static final String PROPERTY = "simpledb.logSegmentBytes";
+
+    private final File log;
+    private final long segmentSize;
+    // first LSN of a segment to its file
+    private final ConcurrentSkipListMap<Long, FileChannel> segments = new ConcurrentSkipListMap<>();
+    // the LSN the next byte appended gets
+    private volatile long end;
+    private volatile boolean open = true;
+    // first LSN of the first segment written since the last force; protected by this
+    private long unforced;
+
+    /**
+     * Open the segments of log that exist already; appends continue after
+     * the last one.
+     *
+     * @param log the name of the log, which the segments are named after
+     */
+    public LogSegments(File log) throws IOException {
+        this.log = log.getAbsoluteFile();
+        this.segmentSize = Long.getLong(PROPERTY, 16L << 20);
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException(PROPERTY + " must be positive");
+        }
+        String prefix = this.log.getName() + ".";
+        File[] files = this.log.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String suffix = f.getName().substring(Math.min(prefix.length(), f.getName().length()));
+                if (f.getName().startsWith(prefix) && suffix.matches("[0-9]+")) {
+                    segments.put(Long.parseLong(suffix), new RandomAccessFile(f, "rw").getChannel());
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            Map.Entry<Long, FileChannel> last = segments.lastEntry();
+            end = last.getKey() + last.getValue().size();
+        }
+        unforced = end;
+    }
+
+    /**
+     * @return the LSN of the first byte kept
+     */
+    public long start() {
+        Map.Entry<Long, FileChannel> first = segments.firstEntry();
+        return first == null ? end : first.getKey();
+    }
+
+    /**
+     * @return the LSN the next byte appended gets
+     */
+    public long end() {
+        return end;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the file of the segment starting at lsn
+     */
+    public File segmentFile(long lsn) {
+        return new File(log.getParentFile(), log.getName() + "." + lsn);
+    }
+
+    /**
+     * Append srcs, starting new segments as the current one fills up.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        long left = 0;
+        for (int i = offset; i < offset + length; i++) {
+            left += srcs[i].remaining();
+        }
+        int next = offset;
+        while (left > 0) {
+            Map.Entry<Long, FileChannel> last = segments.lastEntry();
+            long pos = last == null ? segmentSize : end - last.getKey();
+            if (pos >= segmentSize) {
+                last = newSegment(end);
+                pos = 0;
+            }
+            FileChannel ch = last.getValue();
+            long room = segmentSize - pos;
+            long n;
+            if (left <= room) {
+                // the common case: all of it in one gathering write
+                ch.position(pos);
+                n = 0;
+                while (n < left) {
+                    n += ch.write(srcs, next, offset + length - next);
+                }
+            } else {
+                while (!srcs[next].hasRemaining()) {
+                    next++;
+                }
+                ByteBuffer src = srcs[next];
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + (int) Math.min(part.remaining(), room));
+                n = ch.write(part, pos);
+                src.position(src.position() + (int) n);
+            }
+            end += n;
+            left -= n;
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    private Map.Entry<Long, FileChannel> newSegment(long lsn) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(segmentFile(lsn), "rw");
+        f.setLength(0);
+        segments.put(lsn, f.getChannel());
+        return segments.lastEntry();
+    }
+
+    /**
+     * Read bytes of the log starting at lsn into dst, up to the end of the
+     * segment holding lsn.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    public int read(ByteBuffer dst, long lsn) throws IOException {
+        if (lsn >= end) {
+            return -1;
+        }
+        Map.Entry<Long, FileChannel> seg = segments.floorEntry(lsn);
+        if (seg == null) {
+            throw new IOException("log truncated before LSN " + lsn);
+        }
+        long pos = lsn - seg.getKey();
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + (int) Math.min(dst.remaining(), end - lsn));
+        int n = seg.getValue().read(part, pos);
+        if (n > 0) {
+            dst.position(dst.position() + n);
+        }
+        return n;
+    }
+
+    /**
+     * @return a stream of the log from lsn to its end at the time of the
+     *         call; skipping takes no I/O
+     */
+    public InputStream newInputStream(final long lsn) {
+        final long limit = end;
+        return new InputStream() {
+            private long next = lsn;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (next >= limit) {
+                    return -1;
+                }
+                ByteBuffer dst = ByteBuffer.wrap(b, off, (int) Math.min(len, limit - next));
+                int n = LogSegments.this.read(dst, next);
+                if (n < 0) {
+                    return -1;
+                }
+                next += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, limit - next));
+                next += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Force everything appended so far to disk.
+     */
+    public void force() throws IOException {
+        long from;
+        long to;
+        synchronized (this) {
+            from = unforced;
+            to = end;
+        }
+        Long first = segments.floorKey(from);
+        for (FileChannel ch : segments.tailMap(first == null ? from : first).values()) {
+            try {
+                ch.force(true);
+            } catch (ClosedChannelException e) {
+                // truncated meanwhile, so nobody needs it any more
+            }
+        }
+        synchronized (this) {
+            unforced = Math.max(unforced, to);
+        }
+    }
+
+    /**
+     * Delete the segments that end at or before lsn. Only whole segments go,
+     * so some bytes before lsn may be kept.
+     *
+     * @return the number of segments deleted
+     */
+    public int truncateBefore(long lsn) throws IOException {
+        Long keep = segments.floorKey(lsn);
+        if (keep == null) {
+            return 0;
+        }
+        int n = 0;
+        Iterator<Map.Entry<Long, FileChannel>> it = segments.headMap(keep).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, FileChannel> e = it.next();
+            it.remove();
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Cut the log off at lsn, e.g. after a record the crash cut short;
+     * appends continue there.
+     */
+    public void truncateAfter(long lsn) throws IOException {
+        Iterator<Map.Entry<Long, FileChannel>> it = segments.tailMap(lsn, false).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, FileChannel> e = it.next();
+            it.remove();
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+        Map.Entry<Long, FileChannel> last = segments.lastEntry();
+        if (last != null) {
+            last.getValue().truncate(lsn - last.getKey());
+        }
+        end = lsn;
+        synchronized (this) {
+            unforced = Math.min(unforced, lsn);
+        }
+    }
+
+    /**
+     * Delete all segments; the log starts over, empty, at lsn.
+     */
+    public void reset(long lsn) throws IOException {
+        truncateAfter(-1);
+        end = lsn;
+        synchronized (this) {
+            unforced = lsn;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        for (FileChannel ch : segments.values()) {
+            ch.close();
+        }
+    }
+}
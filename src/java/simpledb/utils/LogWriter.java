@@ -0,0 +1,148 @@
+package simpledb.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Serializes log records into direct ByteBuffers and appends them to a
+ * channel, e.g. {@link LogSegments}. Records are written when the log is
+ * forced, with a single gathering write for all the buffers filled since the
+ * last one; the buffers are then reused.
+ * <p>
+ * Every byte appended gets a log sequence number (LSN). LSNs only grow, also
+ * when the log is moved to another channel, so they can order records
+ * regardless of where they are stored.
+ * <p>
+ * Not thread-safe: the owner serializes the calls.
+ */
+public class LogWriter {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FREE_BUFFERS = 4;
+
+    private GatheringByteChannel channel;
+    private ByteBuffer current = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ArrayList<ByteBuffer> full = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    // LSN of the first byte not written to the channel
+    private long writtenLsn;
+
+    /**
+     * @param channel where records are appended, at its current position
+     * @param lsn the LSN of the first byte appended
+     */
+    public LogWriter(GatheringByteChannel channel, long lsn) {
+        this.channel = channel;
+        this.writtenLsn = lsn;
+    }
+
+    /**
+     * Continue the log on another channel, e.g. after it was copied to a new
+     * file. Everything appended must have been written.
+     */
+    public void setChannel(GatheringByteChannel channel) {
+        setChannel(channel, writtenLsn);
+    }
+
+    /**
+     * Continue the log on channel at lsn, e.g. after a torn end was cut off.
+     * Everything appended must have been written.
+     */
+    public void setChannel(GatheringByteChannel channel, long lsn) {
+        if (pending() > 0) {
+            throw new IllegalStateException("log buffer not written");
+        }
+        this.channel = channel;
+        this.writtenLsn = lsn;
+    }
+
+    public void putByte(byte b) {
+        next().put(b);
+    }
+
+    public void putInt(int i) {
+        if (current.remaining() >= 4) {
+            current.putInt(i);
+        } else {
+            put(ByteBuffer.allocate(4).putInt(i).array());
+        }
+    }
+
+    public void putLong(long l) {
+        if (current.remaining() >= 8) {
+            current.putLong(l);
+        } else {
+            put(ByteBuffer.allocate(8).putLong(l).array());
+        }
+    }
+
+    public void put(byte[] data) {
+        int off = 0;
+        while (off < data.length) {
+            ByteBuffer b = next();
+            int n = Math.min(b.remaining(), data.length - off);
+            b.put(data, off, n);
+            off += n;
+        }
+    }
+
+    /**
+     * @return the LSN the next byte appended will get
+     */
+    public long lsn() {
+        return writtenLsn + pending();
+    }
+
+    /**
+     * @return the number of bytes appended but not written yet
+     */
+    public long pending() {
+        return (long) full.size() * BUFFER_SIZE + current.position();
+    }
+
+    /**
+     * Write everything appended to the channel, without forcing it.
+     *
+     * @return the LSN up to which the log is written
+     */
+    public long write() throws IOException {
+        if (pending() == 0) {
+            return writtenLsn;
+        }
+        long n = pending();
+        ByteBuffer[] bufs = new ByteBuffer[full.size() + 1];
+        for (int i = 0; i < full.size(); i++) {
+            bufs[i] = full.get(i);
+            bufs[i].flip();
+        }
+        current.flip();
+        bufs[full.size()] = current;
+        long left = n;
+        while (left > 0) {
+            left -= channel.write(bufs);
+        }
+        for (ByteBuffer b : full) {
+            if (free.size() < MAX_FREE_BUFFERS) {
+                b.clear();
+                free.add(b);
+            }
+        }
+        full.clear();
+        current.clear();
+        writtenLsn += n;
+        return writtenLsn;
+    }
+
+    // a buffer with room for at least one byte; buffers are only ever
+    // retired when full, which pending() relies on
+    private ByteBuffer next() {
+        if (!current.hasRemaining()) {
+            full.add(current);
+            current = free.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : free.poll();
+        }
+        return current;
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil et al.). Every page keeps the logical times of its
+ * last K references; the victim is the page whose K-th most recent reference is
+ * the oldest. Pages referenced fewer than K times have an infinite backward
+ * K-distance and go first, oldest last reference first, so a one-off scan page
+ * never pushes out a page that has been used repeatedly.
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    static class History {
+        // ring of the last K reference times, newest at pos
+        final long[] refs;
+        int pos;
+        int count;
+
+        History(int k, long now) {
+            refs = new long[k];
+            refs[0] = now;
+            count = 1;
+        }
+
+        synchronized void touch(long now) {
+            pos = (pos + 1) % refs.length;
+            refs[pos] = now;
+            if (count < refs.length) {
+                count++;
+            }
+        }
+
+        synchronized long last() {
+            return refs[pos];
+        }
+
+        /** time of the K-th most recent reference, or -1 if there were fewer than K */
+        synchronized long kth() {
+            if (count < refs.length) {
+                return -1;
+            }
+            return refs[(pos + 1) % refs.length];
+        }
+    }
+
+    private final int k;
+    private final AtomicLong clock = new AtomicLong(0);
+    private final ConcurrentHashMap<PageId, History> history;
+
+    public LruKPolicy(int capacity) {
+        this(capacity, DEFAULT_K);
+    }
+
+    public LruKPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        }
+        this.k = k;
+        this.history = new ConcurrentHashMap<>(capacity);
+    }
+
+    @Override
+    public void recordInsert(PageId pid) {
+        history.put(pid, new History(k, clock.incrementAndGet()));
+    }
+
+    @Override
+    public void recordAccess(PageId pid) {
+        History h = history.get(pid);
+        if (h != null) {
+            h.touch(clock.incrementAndGet());
+        }
+    }
+
+    @Override
+    public void remove(PageId pid) {
+        history.remove(pid);
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (ConcurrentHashMap.Entry<PageId, History> entry : history.entrySet()) {
+            History h = entry.getValue();
+            long kth = h.kth();
+            long last = h.last();
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (evictable.test(entry.getKey())) {
+                    victim = entry.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+}
@@ -4,19 +4,19 @@ import simpledb.PageId;
 import simpledb.TransactionId;
 import simpledb.utils.LockType;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 
-class ObjLock {
+class ObjLock extends LockEntry {
     // boolean blocked;
     LockType type;
     PageId obj;
-    ArrayList<TransactionId> holders;
+    // hashed, so that a page shared by many readers is still cheap to lock
+    final HashSet<TransactionId> holders = new HashSet<>();
 
 
-    public ObjLock(LockType t, PageId obj, ArrayList<TransactionId> holders) {
+    public ObjLock(LockType t, PageId obj) {
         this.type = t;
         this.obj = obj;
-        this.holders = holders;
     }
 
     public void setType(LockType type) {
@@ -31,12 +31,12 @@ class ObjLock {
         return obj;
     }
 
-    public ArrayList<TransactionId> getHolders() {
+    public HashSet<TransactionId> getHolders() {
         return holders;
     }
 
     public boolean tryUpgradeLock(TransactionId tid) {
-        if (type == LockType.SLock && holders.size() == 1 && holders.get(0).equals(tid)) {
+        if (type == LockType.SLock && holders.size() == 1 && holders.contains(tid)) {
             type = LockType.XLock;
             return true;
         }
@@ -45,9 +45,7 @@ class ObjLock {
 
     public TransactionId addHolder(TransactionId tid) {
         if (type == LockType.SLock) {
-            if (!holders.contains(tid)) {
-                holders.add(tid);
-            }
+            holders.add(tid);
             return tid;
         }
         return null;
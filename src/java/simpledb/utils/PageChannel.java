@@ -0,0 +1,300 @@
+package simpledb.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import simpledb.BufferPool;
+
+/**
+ * A long-lived FileChannel for the pages of one DbFile. Reads and writes are
+ * positional (pread/pwrite), so concurrent readers never share a file pointer
+ * and page I/O does not open file handles. Pages are staged through direct
+ * ByteBuffers taken from a small pool shared by all files; runs of pages are
+ * written straight from their arrays with one gathering write.
+ * <p>
+ * The channel is opened lazily, read-only until the first write, and
+ * reopened if an interrupted thread closed it under the other users.
+ * <p>
+ * In mapped mode the file is also mapped read-only into memory and
+ * {@link #map(long, int)} hands out slices of the mapping, so a page can be
+ * parsed with no syscall and no copy. Writes still go through the channel;
+ * the mapping is shared with the page cache so it sees them, and it is
+ * remapped once the file has grown past it.
+ *
+ * @Threadsafe
+ */
+public class PageChannel {
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private final File file;
+    private final boolean mapped;
+    private volatile FileChannel channel;
+    private volatile boolean writable;
+    private volatile MappedByteBuffer mapping;
+    // not the monitor of this, which bulk loads hold while they write the log
+    private final Object reopenLock = new Object();
+    // gathering writes have no positional form and move the channel position
+    private final Object positionLock = new Object();
+
+    public PageChannel(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file the file holding the pages
+     * @param mapped true to also serve reads from a memory mapping of the file
+     */
+    public PageChannel(File file, boolean mapped) {
+        this.file = file;
+        this.mapped = mapped;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Return a read-only view of length bytes of the file starting at
+     * position, backed by the memory mapping.
+     *
+     * @return the view, or null if the channel is not mapped or the range is
+     *         not entirely inside the file
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        if (!mapped) {
+            return null;
+        }
+        MappedByteBuffer m = mapping;
+        if (m == null || position + length > m.capacity()) {
+            m = remap(position + length);
+            if (m == null) {
+                return null;
+            }
+        }
+        ByteBuffer view = m.duplicate();
+        view.position((int) position);
+        view.limit((int) position + length);
+        return view.slice();
+    }
+
+    private synchronized MappedByteBuffer remap(long needed) throws IOException {
+        MappedByteBuffer m = mapping;
+        if (m != null && needed <= m.capacity()) {
+            return m;
+        }
+        long size = size();
+        if (needed > size || size > Integer.MAX_VALUE) {
+            // past the end, or too big for one mapping: use plain reads
+            return null;
+        }
+        m = channel(false).map(FileChannel.MapMode.READ_ONLY, 0, size);
+        mapping = m;
+        return m;
+    }
+
+    /**
+     * @param write true if the channel is needed for writing
+     */
+    private FileChannel channel(boolean write) throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen() || (write && !writable)) {
+            synchronized (reopenLock) {
+                ch = channel;
+                if (ch == null || !ch.isOpen() || (write && !writable)) {
+                    boolean rw = write || (writable && ch != null);
+                    if (ch != null) {
+                        // readers of the read-only channel retry on the new one
+                        ch.close();
+                    }
+                    // the RandomAccessFile closes the descriptor if the
+                    // channel is ever dropped without close()
+                    ch = new RandomAccessFile(file, rw ? "rw" : "r").getChannel();
+                    writable = rw;
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    private static ByteBuffer acquire(int size) {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = size <= pageSize ? bufferPool.poll() : null;
+        if (buf == null || buf.capacity() < size) {
+            buf = ByteBuffer.allocateDirect(Math.max(size, pageSize));
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    // only page sized buffers are kept, so the pool stays small
+    private static void release(ByteBuffer buf) {
+        if (buf.capacity() == BufferPool.getPageSize() && bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.offer(buf);
+        }
+    }
+
+    /**
+     * Read dst.length bytes starting at position, stopping early at the end
+     * of the file.
+     *
+     * @return the number of bytes read, or -1 if position is past the end
+     */
+    public int read(long position, byte[] dst) throws IOException {
+        ByteBuffer buf = acquire(dst.length);
+        try {
+            while (true) {
+                FileChannel ch = channel(false);
+                try {
+                    buf.clear();
+                    buf.limit(dst.length);
+                    while (buf.hasRemaining()) {
+                        int n = ch.read(buf, position + buf.position());
+                        if (n < 0) {
+                            break;
+                        }
+                    }
+                    break;
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // somebody else was interrupted; reopen and retry
+                }
+            }
+            int read = buf.position();
+            if (read == 0 && dst.length > 0) {
+                return -1;
+            }
+            buf.flip();
+            buf.get(dst, 0, read);
+            return read;
+        } finally {
+            release(buf);
+        }
+    }
+
+    /**
+     * Write all of src starting at position.
+     */
+    public void write(long position, byte[] src) throws IOException {
+        ByteBuffer buf = acquire(src.length);
+        try {
+            while (true) {
+                FileChannel ch = channel(true);
+                try {
+                    buf.clear();
+                    buf.put(src);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        ch.write(buf, position + buf.position());
+                    }
+                    return;
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // somebody else was interrupted; reopen and retry
+                }
+            }
+        } finally {
+            release(buf);
+        }
+    }
+
+    /**
+     * Write the arrays of srcs back to back starting at position, with a
+     * single write.
+     */
+    public void write(long position, List<byte[]> srcs) throws IOException {
+        if (srcs.size() == 1) {
+            write(position, srcs.get(0));
+            return;
+        }
+        ByteBuffer[] bufs = new ByteBuffer[srcs.size()];
+        long length = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.wrap(srcs.get(i));
+            length += bufs[i].capacity();
+        }
+        while (true) {
+            FileChannel ch = channel(true);
+            try {
+                synchronized (positionLock) {
+                    for (ByteBuffer buf : bufs) {
+                        buf.clear();
+                    }
+                    ch.position(position);
+                    long written = 0;
+                    while (written < length) {
+                        written += ch.write(bufs);
+                    }
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // somebody else was interrupted; reopen and retry
+            }
+        }
+    }
+
+    /**
+     * Append src at the end of the file.
+     *
+     * @return the position src was written at
+     */
+    public synchronized long append(byte[] src) throws IOException {
+        long position = channel(true).size();
+        write(position, src);
+        return position;
+    }
+
+    /**
+     * Extend the file by length bytes to be written later. The reserved
+     * bytes read as zeros until then.
+     *
+     * @return the position of the reserved bytes
+     */
+    public synchronized long reserve(int length) throws IOException {
+        long position = channel(true).size();
+        write(position + length - 1, new byte[1]);
+        return position;
+    }
+
+    /**
+     * @return the length of the file, 0 if it does not exist yet
+     */
+    public long size() throws IOException {
+        FileChannel ch = channel;
+        if ((ch == null || !ch.isOpen()) && !file.exists()) {
+            return 0;
+        }
+        return channel(false).size();
+    }
+
+    /** Force written pages to the disk. */
+    public void force() throws IOException {
+        channel(false).force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        mapping = null;
+        synchronized (reopenLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            writable = false;
+        }
+    }
+}
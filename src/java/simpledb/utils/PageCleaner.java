@@ -0,0 +1,153 @@
+package simpledb.utils;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes dirty pages of a buffer pool in the background, so that evictions
+ * find a clean frame right away instead of writing one themselves. Once
+ * woken up, a single cleaner thread writes batches of pages until the target
+ * fraction of clean frames is reached or nothing more can be written.
+ * <p>
+ * The target is read from the system property {@value #FRACTION_PROPERTY}
+ * (default 0.1), and the I/O budget in pages per second from
+ * {@value #BUDGET_PROPERTY} (default 4096, 0 for no limit). A batch uses up
+ * its share of the budget, and the cleaner sleeps off what is left of it
+ * before the next batch.
+ *
+ * @Threadsafe
+ */
+public class PageCleaner {
+
+    public static final String FRACTION_PROPERTY = "simpledb.cleanFraction";
+    public static final String BUDGET_PROPERTY = "simpledb.cleanerPagesPerSecond";
+    /** Most pages written by one batch. */
+    public static final int MAX_BATCH_PAGES = 64;
+
+    /** The pool being cleaned. */
+    public interface Cleanable {
+        /**
+         * @return the number of frames that are free or hold a page that can
+         *         be evicted without writing it
+         */
+        int cleanFrames();
+
+        /**
+         * Write up to max dirty pages of one file, in page order.
+         *
+         * @return the number of pages written
+         */
+        int clean(int max) throws IOException;
+    }
+
+    private final Cleanable pool;
+    private final int target;
+    private volatile int budget;
+    private final ThreadPoolExecutor cleaner;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    // protected by this
+    private boolean scheduled;
+
+    /**
+     * @param pool the pool to clean
+     * @param frames the number of frames of the pool
+     */
+    public PageCleaner(Cleanable pool, int frames) {
+        this.pool = pool;
+        double fraction = Double.parseDouble(System.getProperty(FRACTION_PROPERTY, "0.1"));
+        this.target = Math.max(1, (int) Math.ceil(frames * fraction));
+        this.budget = Integer.getInteger(BUDGET_PROPERTY, 4096);
+        cleaner = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "BufferPool-cleaner");
+                    t.setDaemon(true);
+                    return t;
+                });
+        cleaner.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the number of clean frames the cleaner keeps
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * @param pagesPerSecond the most pages to write per second, or 0 for no
+     *        limit
+     */
+    public void setBudget(int pagesPerSecond) {
+        budget = pagesPerSecond;
+    }
+
+    /**
+     * Start cleaning unless the cleaner is at it already.
+     */
+    public synchronized void wakeUp() {
+        if (!scheduled) {
+            scheduled = true;
+            cleaner.execute(this::run);
+        }
+    }
+
+    /**
+     * @return the number of pages written so far
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of batches written so far
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                int deficit;
+                synchronized (this) {
+                    // whoever wakes us up from now on finds us done
+                    deficit = target - pool.cleanFrames();
+                    if (deficit <= 0) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                int rate = budget;
+                int max = Math.min(deficit, MAX_BATCH_PAGES);
+                if (rate > 0) {
+                    max = Math.max(1, Math.min(max, rate / 10));
+                }
+                long start = System.nanoTime();
+                int n = pool.clean(max);
+                if (n == 0) {
+                    // only pages of running transactions are left
+                    break;
+                }
+                written.addAndGet(n);
+                batches.incrementAndGet();
+                if (rate > 0) {
+                    long deadline = start + TimeUnit.SECONDS.toNanos(n) / rate;
+                    for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+                        LockSupport.parkNanos(left);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            scheduled = false;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package simpledb.utils;
+
+import simpledb.TransactionId;
+
+/**
+ * Short-term reader/writer latch of one page. Unlike a lock it is held for
+ * the duration of one operation, not of the transaction; it belongs to a
+ * transaction rather than a thread, so whoever ends the transaction can
+ * also release it.
+ * <p>
+ * The version changes every time the page may have changed under the latch,
+ * so a reader can tell afterwards whether what it read is still current.
+ * <p>
+ * refs counts the writer and the searches that remember the version; it is
+ * only changed while the LatchManager maps the page to this latch.
+ */
+class PageLatch {
+    int readers;
+    TransactionId writer;
+    long version;
+    int refs;
+
+    /**
+     * @return true if tid may read the page now, i.e. nobody else writes it
+     */
+    boolean readable(TransactionId tid) {
+        return writer == null || writer.equals(tid);
+    }
+}
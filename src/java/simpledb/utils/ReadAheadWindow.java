@@ -0,0 +1,75 @@
+package simpledb.utils;
+
+/**
+ * Sequential access detector of a single scan, in the spirit of the Linux
+ * page cache read-ahead. Each page the scan reads is reported with
+ * {@link #onAccess(int)}. While the accesses stay sequential, a new batch is
+ * requested each time the scan has consumed half of what was already
+ * prefetched, and the window doubles with every batch up to
+ * {@link #MAX_WINDOW} pages, so fast scans get deep read-ahead. A random
+ * access collapses the window, so point lookups never trigger read-ahead.
+ * <p>
+ * A window belongs to a single iterator and is not thread safe.
+ */
+public class ReadAheadWindow {
+
+    public static final int MIN_WINDOW = 4;
+    public static final int MAX_WINDOW = 64;
+
+    // a scan starting at page 0 counts as sequential right away
+    private int last = -1;
+    private int window = 0;
+    // highest page number already handed out for prefetching
+    private int issued = -1;
+    private final int maxWindow;
+
+    public ReadAheadWindow() {
+        this(MAX_WINDOW);
+    }
+
+    /**
+     * @param maxWindow upper bound of the window, e.g. the size of the scan
+     *                  ring when the scan reads through one
+     */
+    public ReadAheadWindow(int maxWindow) {
+        this.maxWindow = Math.max(1, maxWindow);
+    }
+
+    /**
+     * Record that the scan read page pgno.
+     *
+     * @return {first, count} of the pages to prefetch now, or null if nothing
+     *         needs to be requested
+     */
+    public int[] onAccess(int pgno) {
+        if (pgno != last + 1) {
+            window = 0;
+            issued = pgno;
+            last = pgno;
+            return null;
+        }
+        last = pgno;
+
+        if (window == 0) {
+            window = Math.min(MIN_WINDOW, maxWindow);
+        } else if (pgno >= issued - window / 2) {
+            // the scan caught up with half of the window: it reads faster
+            // than we prefetch, so ask for more at once
+            window = Math.min(2 * window, maxWindow);
+        } else {
+            return null;
+        }
+
+        int first = Math.max(issued + 1, pgno + 1);
+        int end = pgno + window;
+        if (end < first) {
+            return null;
+        }
+        issued = end;
+        return new int[]{first, end - first + 1};
+    }
+
+    public int window() {
+        return window;
+    }
+}
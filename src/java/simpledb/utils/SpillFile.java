@@ -0,0 +1,174 @@
+package simpledb.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import simpledb.BufferPool;
+import simpledb.DbException;
+import simpledb.Tuple;
+import simpledb.TupleDesc;
+
+/**
+ * A temporary file of tuples, for operators whose input does not fit in
+ * memory. Tuples are appended and then read back in the same order, as
+ * often as needed. They are written in their fixed size page format,
+ * through buffers of a page each.
+ * <p>
+ * The file is created in the directory named by the system property
+ * {@value #PROPERTY} (default java.io.tmpdir) when the first tuple is
+ * appended, and removed by {@link #delete}. It is kept open for appending
+ * until {@link #finish} or the first read. A spill file belongs to a single
+ * operator and is not thread safe.
+ */
+public class SpillFile {
+
+    public static final String PROPERTY = "simpledb.spillDir";
+
+    private final TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private int size;
+    private boolean finished;
+
+    public SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /**
+     * Append t; only before {@link #finish} or the first read.
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished) {
+            throw new DbException("spill file is finished");
+        }
+        try {
+            if (file == null) {
+                String dir = System.getProperty(PROPERTY);
+                file = File.createTempFile("spill", ".tmp", dir == null ? null : new File(dir));
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file), BufferPool.getPageSize()));
+            }
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * @return the number of tuples appended
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Close the file for appending, so that it holds no file handle until it
+     * is read; no more can be appended after this.
+     */
+    public void finish() throws DbException {
+        finished = true;
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * @return a reader of the tuples from the first one; no more can be
+     *         appended after this
+     */
+    public Reader reader() throws DbException {
+        finish();
+        try {
+            if (file == null) {
+                // nothing was appended
+                return new Reader(null);
+            }
+            return new Reader(new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BufferPool.getPageSize())));
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the file; it cannot be used any more.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // removed anyway
+            }
+            out = null;
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /** Reads the tuples of a spill file in the order they were appended. */
+    public class Reader {
+        private final DataInputStream in;
+        private final byte[] data = new byte[td.getSize()];
+        private final ByteBuffer buf = ByteBuffer.wrap(data);
+        private int left = size;
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next tuple, or null after the last one
+         */
+        public Tuple next() throws DbException {
+            if (left == 0) {
+                return null;
+            }
+            try {
+                in.readFully(data);
+            } catch (EOFException e) {
+                throw new DbException("spill file cut short");
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+            left--;
+            Tuple t = new Tuple(td);
+            int offset = 0;
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(buf, offset));
+                offset += td.getFieldType(i).getLen();
+            }
+            return t;
+        }
+
+        public void close() {
+            if (in == null) {
+                return;
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+}
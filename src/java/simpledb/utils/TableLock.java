@@ -0,0 +1,32 @@
+package simpledb.utils;
+
+import simpledb.TransactionId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lock on a whole table. Unlike a page lock its holders may hold it in
+ * different, compatible modes, e.g. IS and IX.
+ */
+class TableLock extends LockEntry {
+    final int tableId;
+    final HashMap<TransactionId, LockType> holders = new HashMap<>();
+
+    TableLock(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /**
+     * @return true if tid may hold the lock in mode while the other holders
+     *         keep theirs
+     */
+    boolean grantable(TransactionId tid, LockType mode) {
+        for (Map.Entry<TransactionId, LockType> e : holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !mode.compatibleWith(e.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The locks one transaction holds, guarded by the monitor of this object.
+ */
+class TransactionLocks {
+    // in the order the locks were taken
+    final LinkedHashSet<PageId> pages = new LinkedHashSet<>();
+    // table id -> mode the transaction holds the table in
+    final HashMap<Integer, LockType> tables = new HashMap<>();
+    // table id -> number of page locks held on that table
+    final HashMap<Integer, Integer> pageCounts = new HashMap<>();
+
+    /**
+     * @return the number of page locks held on the table of pid afterwards
+     */
+    int addPage(PageId pid) {
+        if (!pages.add(pid)) {
+            return pageCounts.get(pid.getTableId());
+        }
+        return pageCounts.merge(pid.getTableId(), 1, Integer::sum);
+    }
+
+    boolean removePage(PageId pid) {
+        if (!pages.remove(pid)) {
+            return false;
+        }
+        pageCounts.computeIfPresent(pid.getTableId(), (k, n) -> n == 1 ? null : n - 1);
+        return true;
+    }
+
+    /**
+     * @return true if the table lock held on the table of pid already
+     *         grants a page lock of mode req
+     */
+    boolean tableCovers(PageId pid, LockType req) {
+        LockType held = tables.get(pid.getTableId());
+        return held != null && held.covers(req);
+    }
+}
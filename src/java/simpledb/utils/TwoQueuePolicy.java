@@ -0,0 +1,159 @@
+package simpledb.utils;
+
+import simpledb.PageId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). New pages enter the FIFO A1in; pages
+ * evicted from A1in are remembered in the ghost queue A1out. A page that is
+ * read again while its id is still in A1out is promoted into Am, the hot
+ * queue. Am is managed with CLOCK instead of a strict LRU list so that a hit
+ * stays O(1) and lock free.
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    static class Frame {
+        final PageId pid;
+        final boolean hot;
+        volatile boolean referenced = false;
+        volatile boolean removed = false;
+
+        Frame(PageId pid, boolean hot) {
+            this.pid = pid;
+            this.hot = hot;
+        }
+    }
+
+    private final int kin;
+    private final int kout;
+
+    private final ConcurrentHashMap<PageId, Frame> frames;
+    private final ConcurrentLinkedQueue<Frame> a1in;
+    private final ConcurrentLinkedQueue<Frame> am;
+    private final AtomicInteger a1inSize = new AtomicInteger(0);
+
+    // ghost entries, ids only
+    private final ConcurrentHashMap<PageId, Boolean> a1outSet;
+    private final ConcurrentLinkedQueue<PageId> a1out;
+
+    public TwoQueuePolicy(int capacity) {
+        // the tuning suggested in the paper: Kin = 25%, Kout = 50% of the pool
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        this.frames = new ConcurrentHashMap<>(capacity);
+        this.a1in = new ConcurrentLinkedQueue<>();
+        this.am = new ConcurrentLinkedQueue<>();
+        this.a1outSet = new ConcurrentHashMap<>(kout);
+        this.a1out = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public void recordInsert(PageId pid) {
+        boolean hot = a1outSet.remove(pid) != null;
+        Frame frame = new Frame(pid, hot);
+        Frame old = frames.put(pid, frame);
+        if (old != null) {
+            unlink(old);
+        }
+        if (hot) {
+            am.offer(frame);
+        } else {
+            a1in.offer(frame);
+            a1inSize.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void recordAccess(PageId pid) {
+        // a hit in A1in is a correlated reference and does not count
+        Frame frame = frames.get(pid);
+        if (frame != null && frame.hot) {
+            frame.referenced = true;
+        }
+    }
+
+    @Override
+    public void remove(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame != null) {
+            unlink(frame);
+        }
+    }
+
+    private void unlink(Frame frame) {
+        frame.removed = true;
+        if (!frame.hot) {
+            a1inSize.decrementAndGet();
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1inSize.get() > kin) {
+            victim = fromA1in(evictable);
+        }
+        if (victim == null) {
+            victim = fromAm(evictable);
+        }
+        if (victim == null) {
+            victim = fromA1in(evictable);
+        }
+        return victim;
+    }
+
+    private PageId fromA1in(Predicate<PageId> evictable) {
+        int budget = a1in.size();
+        while (budget-- > 0) {
+            Frame frame = a1in.poll();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.removed) {
+                continue;
+            }
+            a1in.offer(frame);
+            if (evictable.test(frame.pid)) {
+                remember(frame.pid);
+                return frame.pid;
+            }
+        }
+        return null;
+    }
+
+    private PageId fromAm(Predicate<PageId> evictable) {
+        int budget = 2 * am.size() + 1;
+        while (budget-- > 0) {
+            Frame frame = am.poll();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.removed) {
+                continue;
+            }
+            am.offer(frame);
+            if (!frame.referenced && evictable.test(frame.pid)) {
+                return frame.pid;
+            }
+            frame.referenced = false;
+        }
+        return null;
+    }
+
+    private void remember(PageId pid) {
+        if (a1outSet.put(pid, Boolean.TRUE) == null) {
+            a1out.offer(pid);
+        }
+        while (a1outSet.size() > kout) {
+            PageId oldest = a1out.poll();
+            if (oldest == null) {
+                break;
+            }
+            a1outSet.remove(oldest);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb.utils;
+
+import simpledb.Page;
+import simpledb.PageId;
+import simpledb.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Committed page versions for snapshot reads. A snapshot is the number of
+ * the last commit when it began; a snapshot reader sees every page as it
+ * was after that commit, without taking any lock.
+ * <p>
+ * While a transaction writes a page, the committed image of the page (its
+ * before image) is pinned here. When the writer commits, the image becomes
+ * a version superseded at the new commit number and is kept as long as an
+ * older snapshot may still read it; when the writer aborts it is dropped.
+ * A page that is neither pinned nor superseded after a snapshot is read from
+ * its before image in the buffer pool, which is the last committed state.
+ * <p>
+ * Pinning and publishing a commit exclude snapshot reads of pages, so a
+ * reader never copies a page while its writer modifies it.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    // the rest is guarded by rw
+    private long lastCommit;
+    // committed images of pages being written, and the pages of each writer
+    private final Map<PageId, Page> pinned = new HashMap<>();
+    private final Map<TransactionId, List<PageId>> pinnedBy = new HashMap<>();
+    // pid -> commit number -> image of the page before that commit
+    private final Map<PageId, TreeMap<Long, Page>> superseded = new HashMap<>();
+    // active snapshot of each reader, and how many readers hold each one
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
+
+    /**
+     * Start a snapshot for tid at the last commit.
+     */
+    public void begin(TransactionId tid) {
+        rw.writeLock().lock();
+        try {
+            snapshots.put(tid, lastCommit);
+            active.merge(lastCommit, 1, Integer::sum);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * End the snapshot of tid and drop the versions nobody can read anymore.
+     */
+    public void end(TransactionId tid) {
+        rw.writeLock().lock();
+        try {
+            Long ts = snapshots.remove(tid);
+            if (ts != null) {
+                active.computeIfPresent(ts, (k, n) -> n == 1 ? null : n - 1);
+                prune();
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    public boolean isPinned(PageId pid) {
+        rw.readLock().lock();
+        try {
+            return pinned.containsKey(pid);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record the committed image of a page tid is about to modify. Only the
+     * first image pinned before the writer completes is kept.
+     */
+    public void pin(TransactionId tid, Page committed) {
+        rw.writeLock().lock();
+        try {
+            if (pinned.putIfAbsent(committed.getId(), committed) == null) {
+                pinnedBy.computeIfAbsent(tid, k -> new ArrayList<>()).add(committed.getId());
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Make the pages written by tid visible to new snapshots. onCommit runs
+     * while no snapshot reads pages, and must leave the live pages of tid in
+     * their committed state.
+     */
+    public void publish(TransactionId tid, Runnable onCommit) {
+        rw.writeLock().lock();
+        try {
+            long commit = ++lastCommit;
+            List<PageId> pids = pinnedBy.remove(tid);
+            if (pids != null) {
+                for (PageId pid : pids) {
+                    Page before = pinned.remove(pid);
+                    if (!active.isEmpty()) {
+                        superseded.computeIfAbsent(pid, k -> new TreeMap<>()).put(commit, before);
+                    }
+                }
+            }
+            onCommit.run();
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the images pinned by tid, which aborted. The caller has already
+     * restored the pages to their committed state.
+     */
+    public void discard(TransactionId tid) {
+        rw.writeLock().lock();
+        try {
+            List<PageId> pids = pinnedBy.remove(tid);
+            if (pids != null) {
+                for (PageId pid : pids) {
+                    pinned.remove(pid);
+                }
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read a page as of the snapshot of tid.
+     *
+     * @param live the page as cached in the buffer pool
+     * @return a page that nobody modifies
+     */
+    public Page read(TransactionId tid, Page live) {
+        PageId pid = live.getId();
+        rw.readLock().lock();
+        try {
+            long ts = snapshots.get(tid);
+            TreeMap<Long, Page> versions = superseded.get(pid);
+            if (versions != null) {
+                Map.Entry<Long, Page> e = versions.higherEntry(ts);
+                if (e != null) {
+                    // the first commit after the snapshot replaced this image
+                    return e.getValue();
+                }
+            }
+            Page committed = pinned.get(pid);
+            return committed != null ? committed : live.getBeforeImage();
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    // versions superseded at or before the oldest snapshot are unreachable
+    private void prune() {
+        if (active.isEmpty()) {
+            superseded.clear();
+            return;
+        }
+        long oldest = active.firstKey();
+        superseded.values().removeIf(versions -> {
+            versions.headMap(oldest, true).clear();
+            return versions.isEmpty();
+        });
+    }
+}
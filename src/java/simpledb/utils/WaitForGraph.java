@@ -0,0 +1,184 @@
+package simpledb.utils;
+
+import simpledb.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wait-for graph of the transactions blocked in the LockManager. There is an
+ * edge from a waiting transaction to every other holder of the page or table
+ * it waits on; the edges are kept up to date as holders come and go, and a cycle is
+ * looked for whenever a transaction starts to wait or waits on new holders.
+ * <p>
+ * The youngest transaction of a cycle, i.e. the one with the largest id and
+ * so the least work to lose, is chosen as the victim.
+ * <p>
+ * Callers may hold the monitor of an ObjLock when calling in here, but the
+ * graph never takes an ObjLock monitor itself.
+ *
+ * @Threadsafe
+ */
+public class WaitForGraph {
+
+    // the lock each waiting transaction waits on: a PageId, or the
+    // Integer id of a table
+    private final Map<TransactionId, Object> waitingOn = new HashMap<>();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    // the reverse of waitingOn, so grants and releases only visit the
+    // waiters of their own lock
+    private final Map<Object, Set<TransactionId>> waitersOf = new HashMap<>();
+    private final Set<TransactionId> victims = new HashSet<>();
+
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong requesterVictims = new AtomicLong();
+    private final AtomicLong otherVictims = new AtomicLong();
+
+    /**
+     * Record that tid waits on the lock of resource until one of holders
+     * lets go.
+     *
+     * @return true if the edges of tid changed, so a cycle may have formed
+     */
+    public synchronized boolean waitOn(TransactionId tid, Object resource, Collection<TransactionId> holders) {
+        Set<TransactionId> edges = new HashSet<>(holders);
+        edges.remove(tid);
+        Object previous = waitingOn.put(tid, resource);
+        boolean changed = !resource.equals(previous) || !edges.equals(waitsFor.get(tid));
+        if (!resource.equals(previous)) {
+            removeWaiter(previous, tid);
+            waitersOf.computeIfAbsent(resource, k -> new HashSet<>()).add(tid);
+        }
+        waitsFor.put(tid, edges);
+        return changed;
+    }
+
+    /**
+     * Forget tid as a waiter, e.g. because it got its lock or gave up.
+     */
+    public synchronized void stopWaiting(TransactionId tid) {
+        removeWaiter(waitingOn.remove(tid), tid);
+        waitsFor.remove(tid);
+        victims.remove(tid);
+    }
+
+    /**
+     * holder was granted the lock of resource: its waiters now wait for it too.
+     */
+    public synchronized void granted(Object resource, TransactionId holder) {
+        Set<TransactionId> waiters = waitersOf.get(resource);
+        if (waiters != null) {
+            for (TransactionId waiter : waiters) {
+                if (!waiter.equals(holder)) {
+                    waitsFor.get(waiter).add(holder);
+                }
+            }
+        }
+    }
+
+    /**
+     * holder released the lock of resource: its waiters no longer wait for it.
+     */
+    public synchronized void released(Object resource, TransactionId holder) {
+        Set<TransactionId> waiters = waitersOf.get(resource);
+        if (waiters != null) {
+            for (TransactionId waiter : waiters) {
+                waitsFor.get(waiter).remove(holder);
+            }
+        }
+    }
+
+    private void removeWaiter(Object resource, TransactionId tid) {
+        Set<TransactionId> waiters = resource == null ? null : waitersOf.get(resource);
+        if (waiters != null && waiters.remove(tid) && waiters.isEmpty()) {
+            waitersOf.remove(resource);
+        }
+    }
+
+    public synchronized boolean isVictim(TransactionId tid) {
+        return victims.contains(tid);
+    }
+
+    /**
+     * Look for a cycle through tid and, if there is one, choose its victim.
+     *
+     * @return the victim, or null if tid is not deadlocked
+     */
+    public synchronized TransactionId detect(TransactionId tid) {
+        List<TransactionId> cycle = findCycle(tid);
+        if (cycle == null) {
+            return null;
+        }
+        TransactionId victim = cycle.get(0);
+        for (TransactionId t : cycle) {
+            if (t.getId() > victim.getId()) {
+                victim = t;
+            }
+        }
+        deadlocks.incrementAndGet();
+        (victim.equals(tid) ? requesterVictims : otherVictims).incrementAndGet();
+        victims.add(victim);
+        return victim;
+    }
+
+    /**
+     * @return the resource tid waits on, or null if it does not wait
+     */
+    public synchronized Object waitingOn(TransactionId tid) {
+        return waitingOn.get(tid);
+    }
+
+    // transactions already chosen as victims are about to go away, so
+    // cycles through them are not reported again
+    private List<TransactionId> findCycle(TransactionId start) {
+        Map<TransactionId, TransactionId> parent = new HashMap<>();
+        ArrayDeque<TransactionId> queue = new ArrayDeque<>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            TransactionId t = queue.poll();
+            if (victims.contains(t)) {
+                continue;
+            }
+            Set<TransactionId> edges = waitsFor.get(t);
+            if (edges == null) {
+                continue;
+            }
+            for (TransactionId next : edges) {
+                if (next.equals(start)) {
+                    List<TransactionId> cycle = new ArrayList<>();
+                    for (TransactionId c = t; c != null; c = parent.get(c)) {
+                        cycle.add(c);
+                    }
+                    return cycle;
+                }
+                if (!parent.containsKey(next) && !victims.contains(next)) {
+                    parent.put(next, t);
+                    queue.add(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of deadlocks found */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** @return the number of deadlocks resolved by aborting the transaction that closed the cycle */
+    public long getRequesterVictimCount() {
+        return requesterVictims.get();
+    }
+
+    /** @return the number of deadlocks resolved by aborting another, younger transaction */
+    public long getOtherVictimCount() {
+        return otherVictims.get();
+    }
+}
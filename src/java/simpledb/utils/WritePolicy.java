@@ -0,0 +1,30 @@
+package simpledb.utils;
+
+/**
+ * When a BufferPool writes dirty pages. The default one is picked with the
+ * system property {@value #PROPERTY}, e.g.
+ * <code>-Dsimpledb.writePolicy=STEAL_NO_FORCE</code>.
+ */
+public enum WritePolicy {
+    /**
+     * Pages of running transactions are never written, so a pool full of
+     * them fails; commit writes all pages of the transaction.
+     */
+    NO_STEAL_FORCE,
+    /**
+     * Dirty pages may be written, once their log records are forced, to
+     * make room; commit only forces the log and the pages are written later.
+     * Relies on the log for undo and redo.
+     */
+    STEAL_NO_FORCE;
+
+    public static final String PROPERTY = "simpledb.writePolicy";
+
+    public static WritePolicy fromConfig() {
+        String name = System.getProperty(PROPERTY);
+        if (name == null) {
+            return NO_STEAL_FORCE;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -172,6 +172,51 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testInsertsIntoDifferentLeavesDoNotBlock() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+
+		// make room in the first and the last leaf
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		Tuple first = it.next();
+		Tuple last = first;
+		while(it.hasNext()) {
+			last = it.next();
+		}
+		it.close();
+		bp.deleteTuple(tid, first);
+		bp.deleteTuple(tid, last);
+		bp.transactionComplete(tid);
+
+		// tid1 has not committed when tid2 inserts at the other end of the tree,
+		// which would time out if tid1 still locked the path down to its leaf
+		TransactionId tid1 = new TransactionId();
+		TransactionId tid2 = new TransactionId();
+		bp.insertTuple(tid1, bigFile.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.tupleToList(first)));
+		bp.insertTuple(tid2, bigFile.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.tupleToList(last)));
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		assertFalse(bp.holdsLock(tid1, rootPtrId));
+		assertFalse(bp.holdsLock(tid2, rootPtrId));
+		assertTrue(bp.getLatchManager().getExclusiveLatches(tid1).isEmpty());
+		// no latch is held any more, so none is kept either
+		assertEquals(0, bp.getLatchManager().size());
+		bp.transactionComplete(tid1);
+		bp.transactionComplete(tid2);
+
+		// both inserts are visible afterwards
+		DbFileIterator search = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, first.getField(0)));
+		search.open();
+		assertTrue(search.hasNext());
+		search.close();
+		search = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, last.getField(0)));
+		search.open();
+		assertTrue(search.hasNext());
+		search.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -83,6 +83,28 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		assertFalse(page.isSlotUsed(20));
 	}
 
+	/**
+	 * Unit test for BTreeFile.readPage() through a memory mapping
+	 */
+	@Test
+	public void readPageMapped() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createRandomBTreeFile(2, 520,
+				null, null, 0);
+		BTreeFile mapped = new BTreeFile(twoLeafPageFile.getFile(), 0, td, true);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) mapped.readPage(
+				new BTreePageId(mapped.getId(), 0, BTreePageId.ROOT_PTR));
+		BTreeInternalPage root = (BTreeInternalPage) mapped.readPage(rootPtr.getRootId());
+		assertArrayEquals(twoLeafPageFile.readPage(rootPtr.getRootId()).getPageData(),
+				root.getPageData());
+
+		BTreeEntry e = root.iterator().next();
+		for (BTreePageId leaf : new BTreePageId[]{e.getLeftChild(), e.getRightChild()}) {
+			assertEquals(BTreePageId.LEAF, leaf.pgcateg());
+			assertArrayEquals(twoLeafPageFile.readPage(leaf).getPageData(),
+					mapped.readPage(leaf).getPageData());
+		}
+	}
+
 	@Test
 	public void testIteratorBasic() throws Exception {
 		BTreeFile smallFile = BTreeUtility.createRandomBTreeFile(2, 3, null,
@@ -1,12 +1,16 @@
 package simpledb;
 
 import simpledb.TestUtil.LockGrabber;
+import simpledb.utils.LockManager;
+import simpledb.utils.LockType;
 
 import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +215,62 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Unit test for the wait-for graph of LockManager: the youngest transaction
+   * of a cycle is aborted as soon as the cycle forms, whether it closed the
+   * cycle itself or was already waiting.
+   */
+  @Test public void testYoungestVictimAbortedImmediately() throws Exception {
+    final LockManager lm = new LockManager(16, 16);
+    final int noTimeout = 100000;
+
+    // tid2 closes the cycle and is the younger one
+    lm.acquireLock(tid1, p0, LockType.XLock, noTimeout);
+    lm.acquireLock(tid2, p1, LockType.XLock, noTimeout);
+    Thread waiter = new Thread(() -> {
+      try {
+        lm.acquireLock(tid1, p1, LockType.XLock, noTimeout);
+      } catch (TransactionAbortedException e) {
+        // fails the holdsLock check below
+      }
+    });
+    waiter.start();
+    Thread.sleep(POLL_INTERVAL);
+    long start = System.currentTimeMillis();
+    try {
+      lm.acquireLock(tid2, p0, LockType.XLock, noTimeout);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(1, lm.getDeadlockCount());
+    assertEquals(1, lm.getRequesterVictimCount());
+    lm.releaseLocksOnTransaction(tid2);
+    waiter.join();
+    assertTrue(lm.holdsLock(tid1, p1));
+    lm.releaseLocksOnTransaction(tid1);
+
+    // tid1 closes the cycle, so the waiting tid2 is the victim
+    lm.acquireLock(tid1, p0, LockType.XLock, noTimeout);
+    lm.acquireLock(tid2, p1, LockType.XLock, noTimeout);
+    final boolean[] aborted = new boolean[1];
+    waiter = new Thread(() -> {
+      try {
+        lm.acquireLock(tid2, p0, LockType.XLock, noTimeout);
+      } catch (TransactionAbortedException e) {
+        aborted[0] = true;
+        lm.releaseLocksOnTransaction(tid2);
+      }
+    });
+    waiter.start();
+    Thread.sleep(POLL_INTERVAL);
+    lm.acquireLock(tid1, p1, LockType.XLock, noTimeout);
+    waiter.join();
+    assertTrue(aborted[0]);
+    assertEquals(2, lm.getDeadlockCount());
+    assertEquals(1, lm.getOtherVictimCount());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,102 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.utils.ClockPolicy;
+import simpledb.utils.EvictionPolicy;
+import simpledb.utils.EvictionPolicyType;
+import simpledb.utils.LruKPolicy;
+import simpledb.utils.TwoQueuePolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest {
+
+    private static final int TABLE = 1;
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(TABLE, pgno);
+    }
+
+    /**
+     * Unit test for ClockPolicy: a referenced page gets a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++)
+            policy.recordInsert(pid(i));
+
+        // every frame starts referenced, so the first sweep only clears bits
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.remove(pid(0));
+
+        policy.recordAccess(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for LruKPolicy: a page read twice outlives one-off scan pages
+     */
+    @Test public void lruKScanResistance() {
+        EvictionPolicy policy = new LruKPolicy(4);
+        policy.recordInsert(pid(0));
+        policy.recordAccess(pid(0));
+        for (int i = 1; i < 4; i++)
+            policy.recordInsert(pid(i));
+
+        for (int i = 1; i < 4; i++) {
+            assertEquals(pid(i), policy.chooseVictim(p -> true));
+            policy.remove(pid(i));
+        }
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: a page seen again after leaving A1in is
+     * promoted to Am and outlives the scan pages
+     */
+    @Test public void twoQueuePromotion() {
+        EvictionPolicy policy = new TwoQueuePolicy(4);
+        policy.recordInsert(pid(0));
+        policy.recordInsert(pid(1));
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.remove(pid(0));
+
+        // pid 0 is still in the ghost queue, so it comes back hot
+        policy.recordInsert(pid(0));
+        for (int i = 2; i < 5; i++)
+            policy.recordInsert(pid(i));
+
+        // the scan pages leave first even though pid 0 is older
+        for (int i = 1; i < 4; i++) {
+            assertEquals(pid(i), policy.chooseVictim(p -> true));
+            policy.remove(pid(i));
+        }
+    }
+
+    /**
+     * Unit test for all policies: pages that are not evictable are skipped
+     */
+    @Test public void skipsPinnedPages() {
+        for (EvictionPolicyType type : EvictionPolicyType.values()) {
+            EvictionPolicy policy = type.create(3);
+            for (int i = 0; i < 3; i++)
+                policy.recordInsert(pid(i));
+
+            assertEquals(type.name(), pid(1), policy.chooseVictim(p -> p.equals(pid(1))));
+            assertNull(type.name(), policy.chooseVictim(p -> false));
+
+            policy.remove(pid(1));
+            assertNull(type.name(), policy.chooseVictim(p -> p.equals(pid(1))));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import simpledb.utils.FreeSpaceMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest {
+
+    /**
+     * Unit test for FreeSpaceMap.category(): any free slot counts
+     */
+    @Test public void category() {
+        assertEquals(0, FreeSpaceMap.category(0, 504));
+        assertEquals(1, FreeSpaceMap.category(1, 504));
+        assertEquals(FreeSpaceMap.MAX_CATEGORY, FreeSpaceMap.category(504, 504));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.nextCandidate(): full pages are skipped,
+     * unknown pages are candidates
+     */
+    @Test public void nextCandidate() throws Exception {
+        File f = File.createTempFile("table", ".fsm");
+        f.delete();
+        f.deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f, dataFile(3));
+
+        assertEquals(0, fsm.nextCandidate(0, 3));
+        fsm.update(0, 0, 504);
+        fsm.update(1, 0, 504);
+        assertEquals(2, fsm.nextCandidate(0, 3));
+        assertEquals(-1, fsm.nextCandidate(0, 2));
+
+        fsm.update(0, 10, 504);
+        assertEquals(0, fsm.nextCandidate(0, 3));
+        assertEquals(2, fsm.nextCandidate(1, 3));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.save(): entries survive reopening the map
+     */
+    @Test public void persistence() throws Exception {
+        File f = File.createTempFile("table", ".fsm");
+        f.delete();
+        f.deleteOnExit();
+        File data = dataFile(5);
+        FreeSpaceMap fsm = new FreeSpaceMap(f, data);
+        // nothing to save yet
+        fsm.save();
+        assertFalse(f.exists());
+        fsm.update(0, 0, 504);
+        fsm.update(3, 0, 504);
+        fsm.save();
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(f, data);
+        assertEquals(0, reopened.get(0));
+        // never recorded
+        assertEquals(FreeSpaceMap.UNKNOWN, reopened.get(1));
+        assertEquals(0, reopened.get(3));
+        assertEquals(1, reopened.nextCandidate(0, 5));
+        assertEquals(4, reopened.nextCandidate(3, 5));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap: a map saved for another version of the
+     * data file is discarded
+     */
+    @Test public void stale() throws Exception {
+        File f = File.createTempFile("table", ".fsm");
+        f.delete();
+        f.deleteOnExit();
+        File data = dataFile(2);
+        FreeSpaceMap fsm = new FreeSpaceMap(f, data);
+        fsm.update(0, 0, 504);
+        fsm.save();
+        fsm.close();
+
+        // the table is regenerated with another length
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        raf.setLength(0);
+        raf.close();
+        FreeSpaceMap reopened = new FreeSpaceMap(f, data);
+        assertEquals(FreeSpaceMap.UNKNOWN, reopened.get(0));
+        assertEquals(0, reopened.nextCandidate(0, 1));
+        assertFalse(f.exists());
+    }
+
+    /**
+     * @return a temporary data file of the given number of pages
+     */
+    private static File dataFile(int pages) throws Exception {
+        File data = File.createTempFile("table", ".dat");
+        data.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        raf.setLength((long) pages * BufferPool.getPageSize());
+        raf.close();
+        return data;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.utils.GroupCommitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int COMMITTERS = 8;
+
+    /**
+     * Run COMMITTERS threads at once and wait for all of them.
+     */
+    private static void runConcurrently(final Runnable r) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < COMMITTERS; i++) {
+            Thread t = new Thread(r);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+            assertTrue(!t.isAlive());
+        }
+    }
+
+    /**
+     * Unit test for GroupCommitter: committers arriving within one window
+     * share a single sync
+     */
+    @Test public void commitsShareSyncs() throws Exception {
+        final AtomicLong appended = new AtomicLong();
+        final AtomicInteger syncs = new AtomicInteger();
+        final GroupCommitter gc = new GroupCommitter(() -> {
+            syncs.incrementAndGet();
+            return appended.get();
+        });
+        gc.setWindow(200, TimeUnit.MILLISECONDS);
+        final AtomicInteger done = new AtomicInteger();
+
+        runConcurrently(() -> {
+            try {
+                gc.awaitDurable(appended.incrementAndGet());
+                done.incrementAndGet();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertEquals(COMMITTERS, done.get());
+        assertTrue(syncs.get() < COMMITTERS);
+        assertEquals(syncs.get(), gc.getSyncCount());
+    }
+
+    /**
+     * Unit test for GroupCommitter: an LSN made durable by a synchronous
+     * force needs no sync of its own
+     */
+    @Test public void forcedLsnIsDurable() throws Exception {
+        final AtomicInteger syncs = new AtomicInteger();
+        GroupCommitter gc = new GroupCommitter(() -> {
+            syncs.incrementAndGet();
+            return 10;
+        });
+        // long enough for the force to come first
+        gc.setWindow(10, TimeUnit.SECONDS);
+        CompletableFuture<Long> waiting = gc.durable(5);
+        gc.synced(7);
+        assertTrue(waiting.isDone());
+        assertTrue(gc.durable(7).isDone());
+        gc.awaitDurable(3);
+        assertEquals(0, syncs.get());
+    }
+
+    /**
+     * Unit test for GroupCommitter: a failed sync fails its committers
+     */
+    @Test public void failedSync() throws Exception {
+        GroupCommitter gc = new GroupCommitter(() -> {
+            throw new IOException("disk gone");
+        });
+        try {
+            gc.awaitDurable(1);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("disk gone", e.getMessage());
+        }
+    }
+
+    /**
+     * Unit test for LogFile.logCommit(): concurrent transactions commit with
+     * fewer log forces than commits
+     */
+    @Test public void transactionsShareLogForces() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.getGroupCommitter().setWindow(200, TimeUnit.MILLISECONDS);
+        final List<Transaction> ts = new ArrayList<Transaction>();
+        for (int i = 0; i < COMMITTERS; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            ts.add(t);
+        }
+        final AtomicInteger next = new AtomicInteger();
+
+        runConcurrently(() -> {
+            try {
+                ts.get(next.getAndIncrement()).commit();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertEquals(2 * COMMITTERS, log.getTotalRecords());
+        assertTrue(log.getGroupCommitter().getSyncCount() < COMMITTERS);
+    }
+
+    /**
+     * Unit test for BufferPool.flushPages(): the log force before the pages
+     * of a transaction are written waits with the commits, without holding
+     * up the buffer pool
+     */
+    @Test public void pageFlushDoesNotBlockPool() throws Exception {
+        HeapFile written = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile read = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getLogFile().getGroupCommitter().setWindow(1, TimeUnit.SECONDS);
+        final Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), written.getId(), Utility.getHeapTuple(1, 2));
+        Thread flusher = new Thread(() -> {
+            try {
+                Database.getBufferPool().flushPages(t1.getId());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        flusher.start();
+        Thread.sleep(200);
+
+        // the flush is still waiting for the batching window
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().getPage(t2.getId(), new HeapPageId(read.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(flusher.isAlive());
+        flusher.join(10000);
+        assertTrue(!flusher.isAlive());
+        t1.commit();
+        t2.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
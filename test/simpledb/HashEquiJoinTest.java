@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.utils.SpillFile;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  /** A relation that counts how many of its tuples are read. */
+  static class CountingIterator extends TupleIterator {
+    int reads = 0;
+
+    CountingIterator(TupleDesc td, Iterable<Tuple> tuples) {
+      super(td, tuples);
+    }
+
+    @Override public Tuple next() {
+      reads++;
+      return super.next();
+    }
+  }
+
+  ArrayList<ArrayList<Integer>> rows1 = new ArrayList<ArrayList<Integer>>();
+  ArrayList<ArrayList<Integer>> rows2 = new ArrayList<ArrayList<Integer>>();
+  File spillDir;
+
+  /** Spill into a directory no other test uses */
+  @Before public void createSpillDir() throws Exception {
+    spillDir = Files.createTempDirectory("spill").toFile();
+    System.setProperty(SpillFile.PROPERTY, spillDir.getPath());
+  }
+
+  @After public void clearProperties() {
+    System.clearProperty(HashEquiJoin.PROPERTY);
+    System.clearProperty(SpillFile.PROPERTY);
+    File[] files = spillDir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    spillDir.delete();
+  }
+
+  private static CountingIterator relation(ArrayList<ArrayList<Integer>> rows, int width) {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (ArrayList<Integer> row : rows) {
+      Tuple t = new Tuple(Utility.getTupleDesc(width));
+      for (int i = 0; i < width; i++) {
+        t.setField(i, new IntField(row.get(i)));
+      }
+      tuples.add(t);
+    }
+    return new CountingIterator(Utility.getTupleDesc(width), tuples);
+  }
+
+  private static void addRows(ArrayList<ArrayList<Integer>> rows, int n, int width, int maxKey, Random r) {
+    for (int i = 0; i < n; i++) {
+      ArrayList<Integer> row = new ArrayList<Integer>();
+      row.add(r.nextInt(maxKey));
+      for (int j = 1; j < width; j++) {
+        row.add(r.nextInt());
+      }
+      rows.add(row);
+    }
+  }
+
+  private int spillFiles() {
+    File[] files = spillDir.listFiles();
+    return files == null ? 0 : files.length;
+  }
+
+  /**
+   * Join rows1 with rows2 on their first fields, and check that the result
+   * is the one a nested loops join would return, also after a rewind, and
+   * that each child is read only once per pass and no spill file is left
+   */
+  private void assertJoins() throws Exception {
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t1 : rows1) {
+      for (ArrayList<Integer> t2 : rows2) {
+        if (t1.get(0).equals(t2.get(0))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(t1);
+          out.addAll(t2);
+          expected.add(out);
+        }
+      }
+    }
+    CountingIterator child1 = relation(rows1, 2);
+    CountingIterator child2 = relation(rows2, 3);
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), child1, child2);
+    op.open();
+    // spilled while child1 is read, which the first tuple waits for
+    assertEquals(op.hasNext() && rows1.size() > HashEquiJoin.budget(), spillFiles() > 0);
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(expected.size(), n);
+    assertEquals(rows1.size(), child1.reads);
+    assertEquals(rows2.size(), child2.reads);
+
+    op.rewind();
+    n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(expected.size(), n);
+    op.close();
+
+    SystemTestUtil.matchTuples(op, expected);
+    assertEquals(0, spillFiles());
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when child1 fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    Random r = new Random(1);
+    addRows(rows1, 300, 2, 100, r);
+    addRows(rows2, 500, 3, 100, r);
+    assertJoins();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when both children are spilled to
+   * partitions
+   */
+  @Test public void spilled() throws Exception {
+    System.setProperty(HashEquiJoin.PROPERTY, "100");
+    Random r = new Random(2);
+    addRows(rows1, 2000, 2, 1000, r);
+    addRows(rows2, 3000, 3, 1000, r);
+    assertJoins();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when partitions have to be split
+   * again, and a single key takes more than all the memory
+   */
+  @Test public void skewed() throws Exception {
+    System.setProperty(HashEquiJoin.PROPERTY, "20");
+    Random r = new Random(3);
+    addRows(rows1, 3000, 2, 100000, r);
+    addRows(rows1, 100, 2, 1, r);
+    addRows(rows2, 1000, 3, 100000, r);
+    addRows(rows2, 5, 3, 1, r);
+    assertJoins();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
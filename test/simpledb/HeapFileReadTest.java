@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -77,6 +78,84 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() from many threads sharing the file
+     */
+    @Test
+    public void readPageConcurrently() throws Exception {
+        final HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1200, null, null);
+        final byte[][] expected = new byte[3][];
+        for (int i = 0; i < 3; i++)
+            expected[i] = threePageFile.readPage(new HeapPageId(threePageFile.getId(), i)).getPageData();
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            final int offset = t;
+            readers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        int pgno = (i + offset) % 3;
+                        Page p = threePageFile.readPage(new HeapPageId(threePageFile.getId(), pgno));
+                        assertArrayEquals(expected[pgno], p.getPageData());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() through a memory mapping, including
+     * pages written and appended after the file was mapped
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapFile plain = SystemTestUtil.createRandomHeapFile(2, 1200, null, null);
+        HeapFile mapped = new HeapFile(plain.getFile(), Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(mapped, UUID.randomUUID().toString());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(plain.readPage(new HeapPageId(plain.getId(), i)).getPageData(),
+                    mapped.readPage(new HeapPageId(mapped.getId(), i)).getPageData());
+        }
+
+        // overwrite a page and grow the file past the mapping
+        HeapPage page = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 0));
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(page);
+        HeapPage grown = new HeapPage(new HeapPageId(mapped.getId(), 3), page.getPageData());
+        mapped.writePage(grown);
+
+        assertEquals(4, mapped.numPages());
+        assertArrayEquals(page.getPageData(),
+                mapped.readPage(new HeapPageId(mapped.getId(), 0)).getPageData());
+        assertArrayEquals(grown.getPageData(),
+                mapped.readPage(new HeapPageId(mapped.getId(), 3)).getPageData());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() on files that may not be written:
+     * reading opens them read-only and never creates them
+     */
+    @Test
+    public void readPageReadOnly() throws Exception {
+        File data = SystemTestUtil.createRandomHeapFile(2, 20, null, null).getFile();
+        assertTrue(data.setReadOnly());
+        HeapFile readOnly = Utility.openHeapFile(2, data);
+        HeapPage page = (HeapPage) readOnly.readPage(new HeapPageId(readOnly.getId(), 0));
+        assertEquals(484, page.getNumEmptySlots());
+
+        File missing = new File(data.getPath() + ".missing");
+        HeapFile absent = Utility.openHeapFile(2, missing);
+        assertNull(absent.readPage(new HeapPageId(absent.getId(), 0)));
+        assertFalse(missing.exists());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +46,124 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple(): full pages are skipped through
+     * the free space map without being locked
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId tid2 = new TransactionId();
+        try {
+            empty.insertTuple(tid2, Utility.getHeapTuple(0, 2));
+            assertFalse(Database.getBufferPool().holdsLock(tid2, new HeapPageId(empty.getId(), 0)));
+            assertTrue(Database.getBufferPool().holdsLock(tid2, new HeapPageId(empty.getId(), 1)));
+        } finally {
+            Database.getBufferPool().transactionComplete(tid2);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.bulkInsert(): pages are filled completely and
+     * appended after the existing ones
+     */
+    @Test public void bulkInsert() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 2 * 504 + 1; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+
+        assertEquals(tuples.size(), empty.bulkInsert(tid, tuples.iterator()));
+        assertEquals(4, empty.numPages());
+        HeapPage full = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(0, full.getNumEmptySlots());
+        assertEquals(new HeapPageId(empty.getId(), 3), tuples.get(tuples.size() - 1).getRecordId().getPageId());
+    }
+
+    /**
+     * Unit test for HeapFile.bulkInsert(): the pages are emptied if the
+     * transaction aborts
+     */
+    @Test public void bulkInsertAbort() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 600; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        empty.bulkInsert(tid, tuples.iterator());
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        TransactionId tid2 = new TransactionId();
+        try {
+            DbFileIterator it = empty.iterator(tid2);
+            it.open();
+            assertFalse(it.hasNext());
+            it.close();
+        } finally {
+            Database.getBufferPool().transactionComplete(tid2);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.bulkInsert(): a bulk insert waiting for the
+     * lock of a table does not keep others from growing the file
+     */
+    @Test public void bulkInsertWaitsOutsideAppend() throws Exception {
+        // fill the first page so that the insert below has to append one
+        HeapPageId first = new HeapPageId(empty.getId(), 0);
+        while (((HeapPage) Database.getBufferPool().getPage(tid, first, Permissions.READ_ONLY)).getNumEmptySlots() > 0)
+            empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        Database.getBufferPool().lockTable(tid, empty.getId(), Permissions.READ_ONLY);
+        final TransactionId tid2 = new TransactionId();
+        Thread bulk = new Thread(() -> {
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+            for (int i = 0; i < 600; ++i)
+                tuples.add(Utility.getHeapTuple(i, 2));
+            try {
+                empty.bulkInsert(tid2, tuples.iterator());
+                Database.getBufferPool().transactionComplete(tid2);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        bulk.start();
+        Thread.sleep(200);
+
+        long start = System.currentTimeMillis();
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        Database.getBufferPool().transactionComplete(tid);
+        bulk.join();
+        assertEquals(4, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.writePages(): pages given out of order, with a
+     * gap, end up at their own offsets
+     */
+    @Test public void writePages() throws Exception {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pgno : new int[] {3, 0, 1}) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pgno), HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(pgno, 2));
+            pages.add(page);
+        }
+        empty.writePages(pages);
+        assertEquals(4, empty.numPages());
+        for (int pgno = 0; pgno < 4; pgno++) {
+            HeapPage read = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgno));
+            Iterator<Tuple> it = read.iterator();
+            if (pgno == 2) {
+                assertFalse(it.hasNext());
+            } else {
+                assertEquals(new IntField(pgno), it.next().getField(0));
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -10,6 +10,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -120,6 +121,65 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getField() and HeapPage.iterator(Predicate):
+     * fields are read from the page data and only matching tuples come back
+     */
+    @Test public void testFilteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < 20; ++i)
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+
+        int threshold = EXAMPLE_VALUES[0][0];
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(threshold));
+        int expected = 0;
+        for (int[] values : EXAMPLE_VALUES)
+            if (values[0] >= threshold)
+                expected++;
+
+        Iterator<Tuple> it = page.iterator(p);
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertTrue(((IntField) tup.getField(0)).getValue() >= threshold);
+            assertEquals(new HeapPageId(-1, -1), tup.getRecordId().getPageId());
+            count++;
+        }
+        assertEquals(expected, count);
+
+        // building tuples does not change the page data
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(): readers sharing a page all see the
+     * same, fully built tuples
+     */
+    @Test public void testConcurrentIterators() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        int readers = 4;
+        List<List<Tuple>> seen = new ArrayList<List<Tuple>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; ++r) {
+            List<Tuple> tuples = new ArrayList<Tuple>();
+            seen.add(tuples);
+            threads.add(new Thread(() -> page.iterator().forEachRemaining(tuples::add)));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        for (List<Tuple> tuples : seen) {
+            assertEquals(EXAMPLE_VALUES.length, tuples.size());
+            for (int i = 0; i < tuples.size(); ++i) {
+                assertTrue(tuples.get(i) == seen.get(0).get(i));
+                assertEquals(new IntField(EXAMPLE_VALUES[i][0]), tuples.get(i).getField(0));
+                assertEquals(new IntField(EXAMPLE_VALUES[i][1]), tuples.get(i).getField(1));
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,91 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int[] outerValues = { 7, -1, 250, 7, 499, 600 };
+  ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+  BTreeFile index;
+  TransactionId tid;
+
+  /**
+   * Set up a B+ tree over several leaves with duplicate keys
+   */
+  @Before public void createIndex() throws Exception {
+    index = BTreeUtility.createRandomBTreeFile(2, 3000, 500, null, tuples, 0);
+    tid = new TransactionId();
+  }
+
+  @After public void complete() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Check that probing the index for each outer tuple finds the same tuples
+   * as comparing it with every tuple of the table
+   */
+  private void assertJoins(Predicate.Op op) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    int[] outerData = new int[outerValues.length];
+    for (int i = 0; i < outerValues.length; i++) {
+      outerData[i] = outerValues[i];
+      for (ArrayList<Integer> t : tuples) {
+        if (new IntField(outerValues[i]).compare(op, new IntField(t.get(0)))) {
+          ArrayList<Integer> out = new ArrayList<Integer>();
+          out.add(outerValues[i]);
+          out.addAll(t);
+          expected.add(out);
+        }
+      }
+    }
+    OpIterator outer = TestUtil.createTupleList(1, outerData);
+    IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred, outer, new SeqScan(tid, index.getId(), "t"));
+    SystemTestUtil.matchTuples(join, expected);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    assertJoins(Predicate.Op.EQUALS);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using range predicates
+   */
+  @Test public void rangeJoins() throws Exception {
+    assertJoins(Predicate.Op.LESS_THAN);
+    assertJoins(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.canProbe(): only on the key field
+   */
+  @Test public void canProbe() throws Exception {
+    SeqScan scan = new SeqScan(tid, index.getId(), "t");
+    assertTrue(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan));
+    assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 1), scan));
+    assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
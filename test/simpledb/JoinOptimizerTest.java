@@ -621,4 +621,83 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Verify that chooseAlgorithm() picks the algorithm each predicate needs,
+     * and an index only where it can be probed
+     */
+    @Test
+    public void chooseAlgorithmTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+        index = BTreeUtility.openBTreeFile(2, "c", index.getFile(), 0);
+        Database.getCatalog().addTable(index, "TC");
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2, TC t3 "
+                + "WHERE t1.c1 = t2.c2 AND t1.c1 = t3.c0;"), new Vector<LogicalJoinNode>());
+        double cost1 = stats1.estimateScanCost();
+        double cost2 = stats2.estimateScanCost();
+        double cost3 = index.numPages() * 1000.0;
+
+        LogicalJoinNode j = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS);
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                jo.chooseAlgorithm(j, 1000, 10000, cost1, cost2, true));
+        j = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN);
+        Assert.assertEquals(JoinOptimizer.Algorithm.SORT_MERGE,
+                jo.chooseAlgorithm(j, 1000, 10000, cost1, cost2, true));
+        j = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.NOT_EQUALS);
+        Assert.assertEquals(JoinOptimizer.Algorithm.NESTED_LOOP,
+                jo.chooseAlgorithm(j, 1000, 10000, cost1, cost2, true));
+
+        // a few outer tuples look up the B+ tree instead of scanning it
+        j = new LogicalJoinNode("t1", "t3", "c1", "c0", Predicate.Op.EQUALS);
+        Assert.assertEquals(JoinOptimizer.Algorithm.INDEX_NESTED_LOOP,
+                jo.chooseAlgorithm(j, 5, 20000, cost1, cost3, true));
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                jo.chooseAlgorithm(j, 1000, 20000, cost1, cost3, true));
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                jo.chooseAlgorithm(j, 5, 20000, cost1, cost3, false));
+        // nor on other fields than the key
+        j = new LogicalJoinNode("t1", "t3", "c1", "c1", Predicate.Op.EQUALS);
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                jo.chooseAlgorithm(j, 5, 20000, cost1, cost3, true));
+
+        // a filtered table cannot be probed
+        jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, TC t3 "
+                + "WHERE t1.c1 = t3.c0 AND t3.c1 > 5;"), new Vector<LogicalJoinNode>());
+        j = new LogicalJoinNode("t1", "t3", "c1", "c0", Predicate.Op.EQUALS);
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                jo.chooseAlgorithm(j, 5, 20000, cost1, cost3, true));
+    }
+
+    /** @return an empty relation with fields alias.c0 and alias.c1 */
+    private static OpIterator relation(String alias) {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { alias + ".c0", alias + ".c1" });
+        return new TupleIterator(td, new ArrayList<Tuple>());
+    }
+
+    /**
+     * Verify that instantiateJoin() runs each join with the algorithm the
+     * optimizer chose for it
+     */
+    @Test
+    public void instantiateJoinTest() throws Exception {
+        LogicalJoinNode j = new LogicalJoinNode("t1", "t2", "c1", "c0", Predicate.Op.LESS_THAN);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(j.withAlgorithm(JoinOptimizer.Algorithm.SORT_MERGE),
+                relation("t1"), relation("t2")) instanceof SortMergeJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(j.withAlgorithm(JoinOptimizer.Algorithm.NESTED_LOOP),
+                relation("t1"), relation("t2")) instanceof Join);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(j,
+                relation("t1"), relation("t2")) instanceof Join);
+
+        j = new LogicalJoinNode("t1", "t2", "c1", "c0", Predicate.Op.EQUALS);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(j,
+                relation("t1"), relation("t2")) instanceof HashEquiJoin);
+        // an index needs a scan of the table to probe
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(j.withAlgorithm(JoinOptimizer.Algorithm.INDEX_NESTED_LOOP),
+                relation("t1"), relation("t2")) instanceof HashEquiJoin);
+    }
 }
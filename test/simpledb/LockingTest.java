@@ -2,8 +2,17 @@ package simpledb;
 
 import org.junit.Before;
 import org.junit.Test;
+import simpledb.utils.LockManager;
+import simpledb.utils.LockType;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +195,113 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for LockManager.releaseLock().
+   * A waiter is woken by a release of the page it waits on, and only by that.
+   */
+  @Test public void releaseWakesWaiterOfThatPage() throws Exception {
+    final LockManager lm = new LockManager(16, 16);
+    lm.acquireLock(tid1, p0, LockType.XLock, 100000);
+    lm.acquireLock(tid1, p1, LockType.XLock, 100000);
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread t = new Thread(() -> {
+      try {
+        lm.acquireLock(tid2, p0, LockType.XLock, 100000);
+        acquired.countDown();
+      } catch (TransactionAbortedException e) {
+        // leaves the latch closed
+      }
+    });
+    t.start();
+    assertFalse(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    lm.releaseLock(tid1, p1);
+    assertFalse(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+    lm.releaseLock(tid1, p0);
+    assertTrue(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertTrue(lm.holdsLock(tid2, p0));
+    t.join();
+  }
+
+  /**
+   * Unit test for BufferPool.getPage().
+   * A transaction that waits long for a lock, but is not deadlocked, gets
+   * the lock once it is released instead of aborting.
+   */
+  @Test public void longWaitSucceeds() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread t = new Thread(() -> {
+      try {
+        bp.getPage(tid2, p0, Permissions.READ_WRITE);
+        acquired.countDown();
+      } catch (Exception e) {
+        // leaves the latch closed
+      }
+    });
+    t.start();
+    assertFalse(acquired.await(6000, TimeUnit.MILLISECONDS));
+
+    bp.transactionComplete(tid1);
+    assertTrue(acquired.await(1000, TimeUnit.MILLISECONDS));
+    assertTrue(bp.holdsLock(tid2, p0));
+    t.join();
+  }
+
+  /**
+   * Unit test for table locks in LockManager.
+   * A table SLock covers the reads of its pages and keeps writers of any of
+   * them out, while intention locks of other tables are unaffected.
+   */
+  @Test public void tableLockCoversPages() throws Exception {
+    LockManager lm = new LockManager(16, 16);
+    lm.acquireTableLock(tid1, empty.getId(), LockType.SLock, 100000);
+    lm.acquireLock(tid1, p0, LockType.SLock, 100000);
+    assertTrue(lm.holdsLock(tid1, p2));
+    assertTrue(lm.getLockList(tid1).isEmpty());
+
+    // readers can share pages with the scan, writers cannot
+    lm.acquireLock(tid2, p1, LockType.SLock, 100000);
+    assertTrue(lm.isLockedByOthers(tid2, p2));
+    try {
+      lm.acquireLock(tid2, p2, LockType.XLock, 100);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+    }
+
+    // the scanner itself can still write pages, under SIX
+    lm.acquireLock(tid1, p0, LockType.XLock, 100000);
+    assertEquals(1, lm.getLockList(tid1).size());
+  }
+
+  /**
+   * Unit test for lock escalation in LockManager.
+   * Once a transaction holds enough page locks on a table they are replaced
+   * by one table lock.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    LockManager lm = new LockManager(16, 16);
+    lm.setEscalationThreshold(2);
+    lm.acquireLock(tid1, p0, LockType.XLock, 100000);
+    assertEquals(0, lm.getEscalationCount());
+    lm.acquireLock(tid1, p1, LockType.XLock, 100000);
+    assertEquals(1, lm.getEscalationCount());
+    assertTrue(lm.getLockList(tid1).isEmpty());
+    assertTrue(lm.holdsLock(tid1, p2));
+    assertEquals(1, lm.getTablesCovering(tid1, LockType.XLock).size());
+
+    // escalation never waits: with another reader around it does not happen
+    lm.releaseLocksOnTransaction(tid1);
+    lm.acquireLock(tid2, p2, LockType.SLock, 100000);
+    lm.acquireLock(tid1, p0, LockType.XLock, 100000);
+    lm.acquireLock(tid1, p1, LockType.XLock, 100000);
+    assertEquals(1, lm.getEscalationCount());
+    assertEquals(2, lm.getLockList(tid1).size());
+  }
+
   /**
    * JUnit suite target
    */
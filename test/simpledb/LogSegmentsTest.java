@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.utils.LogSegments;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private File dir;
+    private File log;
+    private LogSegments segments;
+
+    @Before public void open() throws Exception {
+        dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdir();
+        log = new File(dir, "log");
+        System.setProperty(LogSegments.PROPERTY, "100");
+        segments = new LogSegments(log);
+    }
+
+    @After public void close() throws Exception {
+        System.clearProperty(LogSegments.PROPERTY);
+        segments.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private byte[] append(int n) throws Exception {
+        byte[] data = new byte[n];
+        new Random(n).nextBytes(data);
+        segments.write(new ByteBuffer[] { ByteBuffer.wrap(data, 0, n / 2), ByteBuffer.wrap(data, n / 2, n - n / 2) });
+        return data;
+    }
+
+    private byte[] read(long lsn, int n) throws Exception {
+        byte[] data = new byte[n];
+        new DataInputStream(segments.newInputStream(lsn)).readFully(data);
+        return data;
+    }
+
+    /**
+     * Unit test for LogSegments: appends fill fixed size segments, and read
+     * back across them, also after the log is opened again
+     */
+    @Test public void spansSegments() throws Exception {
+        byte[] a = append(30);
+        byte[] b = append(250);
+        assertEquals(280, segments.end());
+        assertEquals(3, segments.segmentCount());
+        assertEquals(100, segments.segmentFile(100).length());
+        assertEquals(80, segments.segmentFile(200).length());
+        assertArrayEquals(a, read(0, 30));
+        assertArrayEquals(b, read(30, 250));
+
+        segments.force();
+        segments.close();
+        segments = new LogSegments(log);
+        assertEquals(280, segments.end());
+        assertArrayEquals(b, read(30, 250));
+    }
+
+    /**
+     * Unit test for LogSegments: truncation deletes whole segments at the
+     * front and cuts the last one at the end
+     */
+    @Test public void truncate() throws Exception {
+        append(30);
+        byte[] b = append(250);
+        assertEquals(0, segments.truncateBefore(99));
+        assertEquals(2, segments.truncateBefore(250));
+        assertFalse(segments.segmentFile(0).exists());
+        assertEquals(200, segments.start());
+        assertArrayEquals(Arrays.copyOfRange(b, 170, 250), read(200, 80));
+
+        segments.truncateAfter(210);
+        assertEquals(210, segments.end());
+        byte[] c = append(100);
+        assertArrayEquals(c, read(210, 100));
+        assertTrue(segments.segmentFile(300).exists());
+
+        segments.reset(1000);
+        assertEquals(0, segments.segmentCount());
+        append(10);
+        assertTrue(segments.segmentFile(1000).exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
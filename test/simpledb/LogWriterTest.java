@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.utils.LogWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogWriterTest extends SimpleDbTestBase {
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("logwriter", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After public void closeFile() throws Exception {
+        raf.close();
+        file.delete();
+    }
+
+    /**
+     * Unit test for LogWriter: values straddling buffer boundaries are read
+     * back as written
+     */
+    @Test public void spansBuffers() throws Exception {
+        LogWriter w = new LogWriter(raf.getChannel(), 100);
+        byte[] data = new byte[LogWriter.BUFFER_SIZE - 3];
+        new Random(1).nextBytes(data);
+        w.put(data);
+        w.putLong(0x0102030405060708L);
+        w.putInt(42);
+        w.putByte((byte) 7);
+        w.put(data);
+        long n = data.length * 2 + 8 + 4 + 1;
+        assertEquals(n, w.pending());
+        assertEquals(100 + n, w.lsn());
+        assertEquals(0, raf.length());
+
+        assertEquals(100 + n, w.write());
+        assertEquals(0, w.pending());
+        assertEquals(n, raf.length());
+
+        raf.seek(0);
+        byte[] read = new byte[data.length];
+        raf.readFully(read);
+        assertArrayEquals(data, read);
+        assertEquals(0x0102030405060708L, raf.readLong());
+        assertEquals(42, raf.readInt());
+        assertEquals(7, raf.readByte());
+        raf.readFully(read);
+        assertArrayEquals(data, read);
+    }
+
+    /**
+     * Unit test for LogWriter: LSNs keep growing when the log moves to
+     * another file
+     */
+    @Test public void lsnSurvivesNewChannel() throws Exception {
+        LogWriter w = new LogWriter(raf.getChannel(), 0);
+        w.putLong(1);
+        w.write();
+        File other = File.createTempFile("logwriter", ".log");
+        other.deleteOnExit();
+        RandomAccessFile raf2 = new RandomAccessFile(other, "rw");
+        w.setChannel(raf2.getChannel());
+        w.putLong(2);
+        assertEquals(16, w.write());
+        assertEquals(8, raf2.length());
+        raf2.close();
+        other.delete();
+    }
+
+    /**
+     * Unit test for LogFile.writePageData(): page images are tagged with a
+     * byte instead of class names and read back as the same page
+     */
+    @Test public void pageImageRoundTrip() throws Exception {
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath() + ".dat", 2);
+        new File(file.getAbsolutePath() + ".dat").deleteOnExit();
+        HeapPageId pid = new HeapPageId(hf.getId(), 9);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        LogFile log = Database.getLogFile();
+
+        LogWriter w = new LogWriter(raf.getChannel(), 0);
+        log.writePageData(w, page);
+        w.write();
+        assertEquals(1 + 3 * 4 + BufferPool.getPageSize(), raf.length());
+
+        raf.seek(0);
+        Page read = log.readPageData(raf);
+        assertEquals(pid, read.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogWriterTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Check that delta turns before into after, and back when undone, also
+     * when applied twice
+     */
+    private void assertApplies(byte[] delta, byte[] before, byte[] after) {
+        byte[] data = before.clone();
+        PageDelta.apply(delta, data, false);
+        assertArrayEquals(after, data);
+        PageDelta.apply(delta, data, false);
+        assertArrayEquals(after, data);
+        PageDelta.apply(delta, data, true);
+        assertArrayEquals(before, data);
+        PageDelta.apply(delta, data, true);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Unit test for PageDelta.diff(): an insert and a delete on a heap page
+     * log only the two tuples
+     */
+    @Test public void heapInsertDelete() throws Exception {
+        HeapPageId pid = new HeapPageId(-1, -1);
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(it.next());
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        page.insertTuple(Utility.getHeapTuple(43, 2));
+
+        byte[] delta = PageDelta.diff(before, page);
+        assertNotNull(delta);
+        assertTrue(delta.length < 100);
+        assertApplies(delta, before.getPageData(), page.getPageData());
+    }
+
+    /**
+     * Unit test for PageDelta.diff(): a changed field logs only its bytes
+     */
+    @Test public void heapUpdateField() throws Exception {
+        HeapPageId pid = new HeapPageId(-1, -1);
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        Tuple first = before.iterator().next();
+        int slot = first.getRecordId().getTupleNumber();
+        // the low byte of the second field
+        data[(before.numSlots + 7) / 8 + slot * 8 + 7] ^= 1;
+        HeapPage after = new HeapPage(pid, data);
+
+        byte[] delta = PageDelta.diff(before, after);
+        assertNotNull(delta);
+        assertTrue(delta.length < 30);
+        assertApplies(delta, before.getPageData(), after.getPageData());
+    }
+
+    /**
+     * Unit test for PageDelta.diff(): tuples moving between the slots of a
+     * leaf have a delta, new sibling pointers do not
+     */
+    @Test public void leaf() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.LEAF);
+        BTreeLeafPage before = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 10000, 1 }));
+
+        byte[] delta = PageDelta.diff(before, page);
+        assertNotNull(delta);
+        assertApplies(delta, before.getPageData(), page.getPageData());
+
+        page.setRightSiblingId(new BTreePageId(-1, 7, BTreePageId.LEAF));
+        assertNull(PageDelta.diff(before, page));
+    }
+
+    /**
+     * Unit test for PageDelta.diff(): other pages always need full images
+     */
+    @Test public void otherPages() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, 0, BTreePageId.ROOT_PTR);
+        BTreeRootPtrPage page = new BTreeRootPtrPage(pid, BTreeRootPtrPage.createEmptyPageData());
+        assertNull(PageDelta.diff(page, page));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.utils.ReadAheadWindow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadWindowTest {
+
+    /**
+     * Unit test for ReadAheadWindow.onAccess(): a scan from page 0 prefetches
+     * right away and the window grows while the scan keeps up
+     */
+    @Test public void sequentialScan() {
+        ReadAheadWindow w = new ReadAheadWindow();
+        assertArrayEquals(new int[]{1, ReadAheadWindow.MIN_WINDOW}, w.onAccess(0));
+
+        int requestedUpTo = ReadAheadWindow.MIN_WINDOW;
+        for (int pgno = 1; pgno < 200; pgno++) {
+            int[] ahead = w.onAccess(pgno);
+            if (ahead != null) {
+                // never asks twice for the same page, never leaves a hole
+                assertEquals(requestedUpTo + 1, ahead[0]);
+                requestedUpTo = ahead[0] + ahead[1] - 1;
+            }
+            assertTrue(requestedUpTo > pgno);
+        }
+        assertEquals(ReadAheadWindow.MAX_WINDOW, w.window());
+    }
+
+    /**
+     * Unit test for ReadAheadWindow.onAccess(): random accesses do not prefetch
+     */
+    @Test public void randomAccess() {
+        ReadAheadWindow w = new ReadAheadWindow();
+        assertNull(w.onAccess(17));
+        assertNull(w.onAccess(3));
+        assertNull(w.onAccess(42));
+        assertEquals(0, w.window());
+
+        // becoming sequential again restarts with the smallest window
+        assertArrayEquals(new int[]{44, ReadAheadWindow.MIN_WINDOW}, w.onAccess(43));
+    }
+
+    /**
+     * Unit test for ReadAheadWindow: the window is capped
+     */
+    @Test public void cappedWindow() {
+        ReadAheadWindow w = new ReadAheadWindow(2);
+        for (int pgno = 0; pgno < 50; pgno++)
+            w.onAccess(pgno);
+        assertEquals(2, w.window());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadWindowTest.class);
+    }
+}
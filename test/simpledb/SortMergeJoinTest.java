@@ -0,0 +1,107 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+
+  /**
+   * Initialize each unit test; both relations are out of order and have
+   * duplicate join fields
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 6,
+                    3, 4,
+                    7, 8,
+                    3, 9,
+                    1, 2 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 4, 5, 6,
+                    3, 4, 5,
+                    5, 6, 7,
+                    1, 2, 3,
+                    3, 0, 0,
+                    2, 3, 4 });
+  }
+
+  /**
+   * Check that the sort-merge join returns exactly the tuples the nested
+   * loops join does
+   */
+  private void assertJoins(Predicate.Op op) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    Join expected = new Join(pred, scan1, scan2);
+    expected.open();
+    int n = 0;
+    while (expected.hasNext()) {
+      expected.next();
+      n++;
+    }
+    expected.close();
+
+    SortMergeJoin op1 = new SortMergeJoin(pred, scan1, scan2);
+    op1.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op1);
+    op1.rewind();
+    int m = 0;
+    while (op1.hasNext()) {
+      op1.next();
+      m++;
+    }
+    assertEquals(n, m);
+    assertTrue(TestUtil.checkExhausted(op1));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    assertJoins(Predicate.Op.EQUALS);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using range predicates
+   */
+  @Test public void rangeJoins() throws Exception {
+    assertJoins(Predicate.Op.LESS_THAN);
+    assertJoins(Predicate.Op.LESS_THAN_OR_EQ);
+    assertJoins(Predicate.Op.GREATER_THAN);
+    assertJoins(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for SortMergeJoin: predicates without an order are refused
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEquals() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
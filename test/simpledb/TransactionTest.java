@@ -4,6 +4,8 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +114,52 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  private static int countTuples(Page p) {
+    int n = 0;
+    for (Iterator<Tuple> it = ((HeapPage) p).iterator(); it.hasNext(); it.next())
+      n++;
+    return n;
+  }
+
+  /**
+   * Unit test for snapshot reads in BufferPool.
+   * A read-only transaction takes no locks and keeps seeing the pages as
+   * they were committed when it began.
+   */
+  @Test public void snapshotRead() throws Exception {
+    int before = countTuples(bp.getPage(tid2, p0, Permissions.READ_ONLY));
+    bp.transactionComplete(tid2);
+
+    HeapPage p = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    p.deleteTuple(p.iterator().next());
+    p.markDirty(true, tid1);
+
+    // not blocked by the writer, and does not see its change
+    TransactionId snap = new TransactionId();
+    bp.beginSnapshot(snap);
+    assertEquals(before, countTuples(bp.getPage(snap, p0, Permissions.READ_ONLY)));
+    assertFalse(bp.holdsLock(snap, p0));
+
+    bp.transactionComplete(tid1, true);
+    assertEquals(before, countTuples(bp.getPage(snap, p0, Permissions.READ_ONLY)));
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(before - 1, countTuples(bp.getPage(later, p0, Permissions.READ_ONLY)));
+
+    // snapshots do not hold writers up, and cannot write themselves
+    TransactionId writer = new TransactionId();
+    bp.getPage(writer, p0, Permissions.READ_WRITE);
+    try {
+      bp.getPage(snap, p1, Permissions.READ_WRITE);
+      fail("expected DbException");
+    } catch (DbException e) {
+    }
+    bp.transactionComplete(writer, false);
+    bp.transactionComplete(snap);
+    bp.transactionComplete(later);
+  }
+
   /**
    * JUnit suite target
    */
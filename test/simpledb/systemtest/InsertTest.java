@@ -68,6 +68,12 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testManyToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        // enough rows to go through HeapFile.bulkInsert
+        validateInsert(3, Insert.BULK_INSERT_THRESHOLD * 3, 1);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
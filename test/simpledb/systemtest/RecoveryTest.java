@@ -0,0 +1,242 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.utils.LogSegments;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test restart recovery beyond the basic cases of LogTest.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    void insert(Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            Tuple tup = new Tuple(Utility.getTupleDesc(2));
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(0));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        }
+    }
+
+    void commitInsert(int from, int to) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, from, to);
+        t.commit();
+    }
+
+    int count(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            int v = ((IntField) scan.next().getField(0)).getValue();
+            if (value < 0 || v == value)
+                n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /** @return the segment files of the log, oldest first */
+    File[] segments() {
+        File[] files = new File(".").listFiles((dir, name) -> name.matches("log\\.[0-9]+"));
+        Arrays.sort(files, Comparator.comparingLong(f -> Long.parseLong(f.getName().substring(4))));
+        return files;
+    }
+
+    long logSize() {
+        long size = 0;
+        for (File f : segments()) {
+            size += f.length();
+        }
+        return size;
+    }
+
+    /**
+     * Committed pages that never made it to disk are redone from the log,
+     * spread over many pages so that every redo thread gets some
+     */
+    @Test public void redoLostPages() throws Exception {
+        commitInsert(0, 10000);
+        int numPages = hf.numPages();
+
+        // lose all the page writes
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[numPages * BufferPool.getPageSize()]);
+        raf.close();
+
+        crash();
+        assertEquals(10000, count(-1));
+    }
+
+    /**
+     * Small transactions log their tuples instead of page images, and the
+     * pages are rebuilt from those alone
+     */
+    @Test public void redoDeltas() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            commitInsert(i, i + 1);
+        }
+        // two images per commit would take 200 pages
+        assertTrue(logSize() < 4 * BufferPool.getPageSize());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.close();
+
+        crash();
+        assertEquals(100, count(-1));
+        assertEquals(1, count(42));
+    }
+
+    /**
+     * A loser is undone, and stays undone when recovery runs again
+     */
+    @Test public void undoIsIdempotent() throws Exception {
+        commitInsert(1, 2);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 2, 3);
+        Database.getBufferPool().flushAllPages(); // something to undo
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /**
+     * Checkpoints are taken in the background, and recovery starts from one
+     * while a transaction is still running
+     */
+    @Test public void periodicCheckpoint() throws Exception {
+        System.setProperty(LogFile.CHECKPOINT_PROPERTY, "10");
+        try {
+            Database.reset();
+            createTable();
+            commitInsert(1, 2);
+            commitInsert(3, 4);
+            Transaction t = new Transaction();
+            t.start();
+            insert(t, 2, 3);
+
+            RandomAccessFile log = new RandomAccessFile("log", "r");
+            try {
+                for (int i = 0; i < 500 && log.readLong() == -1; i++) {
+                    Thread.sleep(10);
+                    log.seek(0);
+                }
+                log.seek(0);
+                assertTrue(log.readLong() != -1);
+            } finally {
+                log.close();
+            }
+        } finally {
+            System.clearProperty(LogFile.CHECKPOINT_PROPERTY);
+        }
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+        assertEquals(1, count(3));
+    }
+
+    /**
+     * Truncation deletes the segments before the oldest record recovery
+     * needs, which for a running transaction is its first one
+     */
+    @Test public void truncateSegments() throws Exception {
+        File otherFile = new File("simple2.db");
+        System.setProperty(LogSegments.PROPERTY, "4096");
+        try {
+            Database.reset();
+            createTable();
+            otherFile.delete();
+            HeapFile other = Utility.createEmptyHeapFile(otherFile.getAbsolutePath(), 2);
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), other.getId(), Utility.getHeapTuple(1, 2));
+            Database.getBufferPool().flushAllPages(); // something to undo
+            for (int i = 0; i < 200; i++) {
+                commitInsert(i, i + 1);
+            }
+            File first = segments()[0];
+            int before = segments().length;
+            assertTrue(before > 3);
+
+            // the running transaction keeps its records
+            Database.getLogFile().logCheckpoint();
+            assertEquals(before, segments().length);
+            assertTrue(first.exists());
+
+            t.commit();
+            // nor do pages that are not written yet
+            Database.getBufferPool().flushAllPages();
+            Database.getLogFile().logCheckpoint();
+            assertTrue(segments().length <= 2);
+            assertTrue(!first.exists());
+        } finally {
+            System.clearProperty(LogSegments.PROPERTY);
+        }
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Utility.openHeapFile(2, otherFile);
+        Database.getLogFile().recover();
+        assertEquals(200, count(-1));
+    }
+
+    /**
+     * A record the crash cut short is dropped, and the log goes on after the
+     * last complete one
+     */
+    @Test public void tornRecord() throws Exception {
+        commitInsert(1, 2);
+        File[] segments = segments();
+        RandomAccessFile log = new RandomAccessFile(segments[segments.length - 1], "rw");
+        log.seek(log.length());
+        log.writeInt(3); // UPDATE, but nothing more
+        log.writeInt(0);
+        log.close();
+
+        crash();
+        assertEquals(1, count(1));
+        commitInsert(3, 4);
+
+        crash();
+        assertEquals(1, count(1));
+        assertEquals(1, count(3));
+    }
+}
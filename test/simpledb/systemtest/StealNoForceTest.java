@@ -0,0 +1,249 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.utils.PageCleaner;
+import simpledb.utils.WritePolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the STEAL/NO-FORCE write policy: commits only force the log, and a
+ * transaction may dirty more pages than the pool holds.
+ */
+public class StealNoForceTest extends SimpleDbTestBase {
+    File file;
+    HeapFile hf;
+
+    @BeforeClass public static void steal() {
+        System.setProperty(WritePolicy.PROPERTY, WritePolicy.STEAL_NO_FORCE.name());
+    }
+
+    @AfterClass public static void noSteal() {
+        System.clearProperty(WritePolicy.PROPERTY);
+        Database.reset();
+    }
+
+    @Before public void createTable() throws Exception {
+        assertEquals(WritePolicy.STEAL_NO_FORCE, Database.getBufferPool().getWritePolicy());
+        file = new File("simple1.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    void insert(Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            Tuple tup = new Tuple(Utility.getTupleDesc(2));
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(0));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        }
+    }
+
+    int count() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A commit leaves its pages dirty in memory, and they come back from the
+     * log after a crash
+     */
+    @Test public void commitOnlyForcesLog() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(false, onDisk.iterator().hasNext());
+
+        crash();
+        assertEquals(10, count());
+    }
+
+    /**
+     * A checkpoint leaves committed pages unwritten, and their records
+     * survive the truncation so that recovery can redo them
+     */
+    @Test public void checkpointDoesNotFlush() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(false, onDisk.iterator().hasNext());
+
+        crash();
+        assertEquals(10, count());
+    }
+
+    /**
+     * The cleaner writes committed pages in the background, until enough
+     * frames are clean
+     */
+    @Test public void cleanerWritesCommittedPages() throws Exception {
+        Database.resetBufferPool(20);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 20 * 504);
+        t.commit();
+
+        PageCleaner cleaner = Database.getBufferPool().getPageCleaner();
+        for (int i = 0; i < 500 && cleaner.getWrittenCount() < cleaner.getTarget(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(cleaner.getWrittenCount() >= cleaner.getTarget());
+        int onDisk = 0;
+        for (int pgno = 0; pgno < hf.numPages(); pgno++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgno));
+            if (page.iterator().hasNext()) {
+                onDisk++;
+            }
+        }
+        assertEquals(cleaner.getWrittenCount(), onDisk);
+
+        crash();
+        assertEquals(20 * 504, count());
+    }
+
+    /**
+     * A transaction dirtying more pages than the pool holds gets them stolen
+     * instead of failing
+     */
+    @Test public void bigTransactionSteals() throws Exception {
+        Database.resetBufferPool(3);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 5000);
+        t.commit();
+        assertEquals(5000, count());
+
+        crash();
+        assertEquals(5000, count());
+    }
+
+    /**
+     * Pages stolen from an aborted transaction are rolled back on disk, and
+     * stay so after a crash
+     */
+    @Test public void abortUndoesStolenPages() throws Exception {
+        Database.resetBufferPool(3);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 100);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        insert(t, 100, 5000);
+        t.abort();
+        assertEquals(100, count());
+
+        crash();
+        assertEquals(100, count());
+    }
+
+    /**
+     * Concurrent B+ tree inserts, half of which abort, in a pool so small
+     * that pages are stolen all the time: what is written for others never
+     * includes the changes of an operation that has not finished, so the
+     * aborts leave a consistent tree. The tree is kept too small for its
+     * internal pages to split, which pins more pages than the pool holds.
+     */
+    @Test public void concurrentBTreeInsertsAndAborts() throws Exception {
+        BufferPool.setPageSize(1024);
+        try {
+            final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+            Database.resetBufferPool(40);
+            final AtomicInteger committed = new AtomicInteger();
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            Thread[] workers = new Thread[8];
+            for (int i = 0; i < workers.length; i++) {
+                final Random r = new Random(i);
+                workers[i] = new Thread(() -> {
+                    for (int n = 0; n < 50; n++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            Tuple tup = BTreeUtility.getBTreeTuple(new int[] {
+                                    r.nextInt(BTreeUtility.MAX_RAND_VALUE), r.nextInt(BTreeUtility.MAX_RAND_VALUE) });
+                            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
+                            if (r.nextBoolean()) {
+                                t.abort();
+                            } else {
+                                t.commit();
+                                committed.incrementAndGet();
+                            }
+                        } catch (TransactionAbortedException e) {
+                            abortQuietly(t);
+                        } catch (Throwable e) {
+                            errors.add(e);
+                            abortQuietly(t);
+                        }
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            assertTrue(errors.toString(), errors.isEmpty());
+
+            TransactionId tid = new TransactionId();
+            BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+            DbFileIterator it = bf.iterator(tid);
+            it.open();
+            int n = 0;
+            while (it.hasNext()) {
+                it.next();
+                n++;
+            }
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(5000 + committed.get(), n);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+    }
+
+    static void abortQuietly(Transaction t) {
+        try {
+            t.abort();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}